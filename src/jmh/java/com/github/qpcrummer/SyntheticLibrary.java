@@ -0,0 +1,153 @@
+package com.github.qpcrummer;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.SplittableRandom;
+import java.util.stream.Stream;
+
+/**
+ * Generates Songs and beat files for the benchmarks, so they don't depend on anyone's real library
+ */
+public final class SyntheticLibrary {
+    // Same seed every run, so every run measures the same data
+    private static final long SEED = 0x4A554B45L;
+    private static final int SAMPLE_RATE = 44100;
+    private static final int FRAME_SIZE = 4;
+
+    private SyntheticLibrary() {
+    }
+
+    /**
+     * Length of a Song that fits some number of beats per channel file. Songs are at least three and a half minutes,
+     * and long enough that beats are 400 ms apart on average. Packing more beats in keeps every light on all the time,
+     * which leaves the timeline with hardly any events
+     * @param beatsPerFile beats in every channel file
+     * @return length in microseconds
+     */
+    public static long songLength(final int beatsPerFile) {
+        return Math.max(210_000_000L, beatsPerFile * 400_000L);
+    }
+
+    /**
+     * Writes a silent 16 bit stereo WAV file with a LIST/INFO chunk after the audio, like most taggers write it
+     * @param file Path to write to
+     * @param milliseconds length of the audio
+     * @param title INAM value
+     * @param artist IART value
+     */
+    public static void writeSong(final Path file, final int milliseconds, final String title, final String artist) throws IOException {
+        final int dataSize = (int) ((long) SAMPLE_RATE * milliseconds / 1000) * FRAME_SIZE;
+        final byte[] info = infoChunk(title, artist);
+
+        final ByteBuffer header = ByteBuffer.allocate(44).order(ByteOrder.LITTLE_ENDIAN);
+        header.put("RIFF".getBytes(StandardCharsets.US_ASCII)).putInt(36 + dataSize + info.length);
+        header.put("WAVE".getBytes(StandardCharsets.US_ASCII));
+        header.put("fmt ".getBytes(StandardCharsets.US_ASCII)).putInt(16)
+                .putShort((short) 1).putShort((short) 2).putInt(SAMPLE_RATE).putInt(SAMPLE_RATE * FRAME_SIZE)
+                .putShort((short) FRAME_SIZE).putShort((short) 16);
+        header.put("data".getBytes(StandardCharsets.US_ASCII)).putInt(dataSize);
+
+        Files.createDirectories(file.getParent());
+        try (OutputStream out = Files.newOutputStream(file)) {
+            out.write(header.array());
+            final byte[] silence = new byte[64 * 1024];
+            for (int written = 0; written < dataSize; written += silence.length) {
+                out.write(silence, 0, Math.min(silence.length, dataSize - written));
+            }
+            out.write(info);
+        }
+    }
+
+    private static byte[] infoChunk(final String title, final String artist) {
+        final byte[] name = terminated(title);
+        final byte[] author = terminated(artist);
+        final ByteBuffer chunk = ByteBuffer.allocate(12 + 8 + name.length + 8 + author.length).order(ByteOrder.LITTLE_ENDIAN);
+        chunk.put("LIST".getBytes(StandardCharsets.US_ASCII)).putInt(chunk.capacity() - 8);
+        chunk.put("INFO".getBytes(StandardCharsets.US_ASCII));
+        chunk.put("INAM".getBytes(StandardCharsets.US_ASCII)).putInt(name.length).put(name);
+        chunk.put("IART".getBytes(StandardCharsets.US_ASCII)).putInt(author.length).put(author);
+        return chunk.array();
+    }
+
+    /**
+     * Null terminates a value and pads it to an even length, as RIFF needs
+     */
+    private static byte[] terminated(final String value) {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        final byte[] padded = new byte[(bytes.length + 2) & ~1];
+        System.arraycopy(bytes, 0, padded, 0, bytes.length);
+        return padded;
+    }
+
+    /**
+     * Writes beat txt files for a Song. Files are named after the lights they drive, like hand made ones.
+     * About a third of the beats have an end time
+     * @param beatDirectory directory to write to
+     * @param files number of channel files
+     * @param beatsPerFile beats in every file
+     * @param songLength length of the Song in microseconds
+     */
+    public static void writeBeats(final Path beatDirectory, final int files, final int beatsPerFile, final long songLength) throws IOException {
+        Files.createDirectories(beatDirectory);
+        final SplittableRandom random = new SplittableRandom(SEED);
+        for (int file = 0; file < files; file++) {
+            final int light = file % 12;
+            // Every number in the name is a light, so files driving the same lights are told apart by a letter
+            final Path source = beatDirectory.resolve(light + "_" + ((light + 1) % 12) + "_" + (char) ('a' + file / 12) + ".txt");
+            try (BufferedWriter writer = Files.newBufferedWriter(source)) {
+                final long[] starts = beatTimes(random, beatsPerFile, songLength);
+                for (final long start : starts) {
+                    if (random.nextInt(3) == 0) {
+                        writer.write("[" + start + ", " + (start + random.nextLong(50_000, 1_000_000)) + "]");
+                    } else {
+                        writer.write(Long.toString(start));
+                    }
+                    writer.newLine();
+                }
+            }
+        }
+    }
+
+    /**
+     * Random sorted beat times
+     */
+    public static long[] beatTimes(final SplittableRandom random, final int beats, final long songLength) {
+        final long[] times = new long[beats];
+        for (int i = 0; i < beats; i++) {
+            times[i] = random.nextLong(songLength);
+        }
+        Arrays.sort(times);
+        return times;
+    }
+
+    /**
+     * Creates a random generator with the benchmark seed
+     * @return SplittableRandom
+     */
+    public static SplittableRandom random() {
+        return new SplittableRandom(SEED);
+    }
+
+    /**
+     * Deletes a directory and everything in it
+     * @param root directory to delete
+     */
+    public static void delete(final Path root) throws IOException {
+        if (Files.notExists(root)) {
+            return;
+        }
+        try (Stream<Path> tree = Files.walk(root)) {
+            for (final Path path : tree.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.github.qpcrummer.beat;
+
+import com.github.qpcrummer.SyntheticLibrary;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading a Song's beats: compiling the txt files, mapping the compiled file, and merging it into a BeatTimeline
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class BeatFileBenchmark {
+    // A hand made show, a busy show, and a detector gone wild
+    @Param({"4", "12", "64"})
+    public int files;
+    @Param({"500", "5000", "100000"})
+    public int beatsPerFile;
+
+    private Path directory;
+    private List<Path> sources;
+    private Path compiled;
+
+    @Setup
+    public void setup() throws IOException {
+        this.directory = Files.createTempDirectory("beat-bench");
+        SyntheticLibrary.writeBeats(this.directory, this.files, this.beatsPerFile, SyntheticLibrary.songLength(this.beatsPerFile));
+        this.sources = BeatCompiler.listSources(this.directory);
+        this.compiled = this.directory.resolve(BeatFile.FILE_NAME);
+        BeatCompiler.compile(this.sources, this.compiled);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        SyntheticLibrary.delete(this.directory);
+    }
+
+    @Benchmark
+    public Path compile() throws IOException {
+        BeatCompiler.compile(this.sources, this.compiled);
+        return this.compiled;
+    }
+
+    @Benchmark
+    public List<Channel> read() throws IOException {
+        return BeatFile.read(this.compiled);
+    }
+
+    @Benchmark
+    public BeatTimeline readAndMerge() throws IOException {
+        return BeatTimeline.merge(BeatFile.read(this.compiled));
+    }
+
+    /**
+     * What a Song change costs when nothing changed on disk
+     */
+    @Benchmark
+    public BeatTimeline compileIfStaleAndMerge() throws IOException {
+        return BeatTimeline.merge(BeatFile.read(BeatCompiler.compileIfStale(this.directory, this.compiled)));
+    }
+}
@@ -0,0 +1,94 @@
+package com.github.qpcrummer.beat;
+
+import com.github.qpcrummer.SyntheticLibrary;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merging channel files and the per tick work of the beat tracker
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BeatTimelineBenchmark {
+    @Param({"4", "12", "64"})
+    public int files;
+    @Param({"500", "5000", "100000"})
+    public int beatsPerFile;
+
+    private List<Channel> channels;
+    private long[] relayOffsets;
+    private BeatTimeline timeline;
+    private long[] seekTimes;
+    private int nextSeek;
+
+    @Setup
+    public void setup() {
+        final SplittableRandom random = SyntheticLibrary.random();
+        final long songLength = SyntheticLibrary.songLength(this.beatsPerFile);
+        this.channels = new ArrayList<>(this.files);
+        for (int file = 0; file < this.files; file++) {
+            final long[] starts = SyntheticLibrary.beatTimes(random, this.beatsPerFile, songLength);
+            final long[] ends = new long[starts.length];
+            for (int beat = 0; beat < ends.length; beat++) {
+                ends[beat] = random.nextInt(3) == 0 ? starts[beat] + random.nextLong(50_000, 1_000_000) : BeatFile.NO_END;
+            }
+            this.channels.add(new Channel(new int[]{file % 12, (file + 1) % 12}, starts, ends));
+        }
+
+        this.relayOffsets = new long[BeatTimeline.MAX_LIGHTS];
+        for (int light = 0; light < 12; light++) {
+            this.relayOffsets[light] = light * 2_000L;
+        }
+
+        this.timeline = BeatTimeline.merge(this.channels);
+        this.seekTimes = new long[1024];
+        for (int i = 0; i < this.seekTimes.length; i++) {
+            this.seekTimes[i] = random.nextLong(songLength);
+        }
+    }
+
+    @Benchmark
+    public BeatTimeline merge() {
+        return BeatTimeline.merge(this.channels);
+    }
+
+    @Benchmark
+    public BeatTimeline mergeWithRelayOffsets() {
+        return BeatTimeline.merge(this.channels, this.relayOffsets);
+    }
+
+    /**
+     * What the tracker does after a seek or a pause
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public long seek() {
+        final long time = this.seekTimes[this.nextSeek++ & (this.seekTimes.length - 1)];
+        final int cursor = this.timeline.indexAfter(time);
+        return cursor > 0 ? this.timeline.getState(cursor - 1) : 0;
+    }
+
+    /**
+     * Every event of a Song, the way the tracker walks them during playback
+     */
+    @Benchmark
+    public void playThrough(final Blackhole blackhole) {
+        for (int cursor = 0; cursor < this.timeline.size(); cursor++) {
+            blackhole.consume(this.timeline.getTime(cursor));
+            blackhole.consume(this.timeline.getState(cursor));
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.github.qpcrummer.light;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing light frames through LightUtils to the mock backend, so only our own overhead is measured
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class LightOutputBenchmark {
+    private final MockLightOutput output = new MockLightOutput(12);
+    private long frame;
+
+    @Setup
+    public void setup() {
+        LightUtils.setOutput(this.output);
+    }
+
+    @Benchmark
+    public long setLights() {
+        // Walk through every combination of the 12 lights
+        this.frame = (this.frame + 0x5A5) & 0xFFF;
+        LightUtils.setLights(this.frame);
+        return this.output.getFrame();
+    }
+
+    @Benchmark
+    public long blink() {
+        this.frame = (this.frame + 1) % 12;
+        LightUtils.blinkLED((int) this.frame, 200_000);
+        return this.output.getFrame();
+    }
+}
@@ -0,0 +1,104 @@
+package com.github.qpcrummer.music;
+
+import com.github.qpcrummer.SyntheticLibrary;
+import com.github.qpcrummer.directories.Directories;
+import com.github.qpcrummer.directories.SongCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Scanning playlists for Songs, and finding the beat directories of a library the SongCache has never seen.
+ * Directories point at a temporary root while benchmarking, see build.gradle
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class LibraryScanBenchmark {
+    private static final int SONGS_PER_FOLDER = 50;
+
+    @Param({"20", "2000", "20000"})
+    public int songs;
+
+    private Path directory;
+    private final List<Path> playlists = new ArrayList<>();
+
+    /**
+     * Empties the SongCache before every invocation, so every one finds a new library
+     */
+    @State(Scope.Thread)
+    public static class ColdCache {
+        @Setup(Level.Invocation)
+        public void setup() throws IOException {
+            SongCache.reset();
+            SyntheticLibrary.delete(Directories.cache);
+            Files.createDirectories(Directories.cache);
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        // The cache and beat folders are deleted afterwards, so never run against the real ones
+        if (System.getProperty("celebrator.root") == null) {
+            throw new IllegalStateException("Run with -Dcelebrator.root pointing at a temporary folder");
+        }
+        Directories.createDirectories();
+        this.directory = Files.createTempDirectory("scan-bench");
+        for (int i = 0; i < this.songs; i++) {
+            // Four playlists, with a folder for every album
+            final Path album = this.directory.resolve("playlist" + (i % 4)).resolve("album" + (i / SONGS_PER_FOLDER));
+            SyntheticLibrary.writeSong(album.resolve("Song_" + i + ".wav"), 10, "Song " + i, "Artist");
+        }
+        for (int i = 0; i < Math.min(4, this.songs); i++) {
+            this.playlists.add(this.directory.resolve("playlist" + i));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        SyntheticLibrary.delete(this.directory);
+        SyntheticLibrary.delete(Directories.main);
+    }
+
+    @Benchmark
+    public int scan() throws InterruptedException {
+        final AtomicInteger found = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(1);
+        LibraryScanner.scan(this.playlists, batch -> found.addAndGet(batch.size()), count -> done.countDown());
+        done.await();
+        return found.get();
+    }
+
+    /**
+     * A scan that also hashes every Song and gives it a beat directory, like a first show night with a new library
+     */
+    @Benchmark
+    public int scanAndBind(final ColdCache cache) throws InterruptedException {
+        final AtomicInteger found = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(1);
+        LibraryScanner.scan(this.playlists, batch -> {
+            for (final Path song : batch) {
+                Directories.getBeatPath(song);
+            }
+            found.addAndGet(batch.size());
+        }, count -> done.countDown());
+        done.await();
+        return found.get();
+    }
+}
@@ -0,0 +1,76 @@
+package com.github.qpcrummer.music;
+
+import com.github.qpcrummer.SyntheticLibrary;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Title and artist lookups, both from the catalog and straight from the WAV files
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SongCatalogBenchmark {
+    // Songs x milliseconds. Long Songs put the INFO chunk far from the header.
+    // Writing thousands of full length Songs would take the disk over, so only a few are long
+    @Param({"20x100", "2000x100", "20x210000"})
+    public String library;
+
+    private Path directory;
+    private Path[] paths;
+    private long modified;
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        final String[] library = this.library.split("x");
+        final int songs = Integer.parseInt(library[0]);
+        final int milliseconds = Integer.parseInt(library[1]);
+        this.directory = Files.createTempDirectory("catalog-bench");
+        this.paths = new Path[songs];
+        for (int i = 0; i < songs; i++) {
+            this.paths[i] = this.directory.resolve("Song_" + i + ".wav");
+            SyntheticLibrary.writeSong(this.paths[i], milliseconds, "Song " + i, "Artist " + (i % 37));
+        }
+        this.modified = Files.getLastModifiedTime(this.paths[0]).toMillis();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        SyntheticLibrary.delete(this.directory);
+    }
+
+    /**
+     * Every title in the list, as the CLI "list song" command does
+     */
+    @Benchmark
+    public void listTitles(final Blackhole blackhole) {
+        for (final Path path : this.paths) {
+            blackhole.consume(MusicUtils.getTitle(path));
+        }
+    }
+
+    /**
+     * A Song that changed on disk, so its chunks are read again
+     */
+    @Benchmark
+    public SongCatalog.SongInfo readChangedSong() throws IOException {
+        final Path path = this.paths[this.next++ % this.paths.length];
+        Files.setLastModifiedTime(path, FileTime.fromMillis(++this.modified));
+        return SongCatalog.get(path);
+    }
+}
@@ -1,17 +1,25 @@
 package com.github.qpcrummer;
 
+import com.github.qpcrummer.beat.ShowSimulator;
 import com.github.qpcrummer.cli.ConsoleReader;
 import com.github.qpcrummer.directories.Directories;
 import com.github.qpcrummer.gui.NewJukeboxGUI;
 import com.github.qpcrummer.gui.NewPlaylistGUI;
 import com.github.qpcrummer.light.LightUtils;
+import com.github.qpcrummer.music.Calibration;
+import com.github.qpcrummer.music.LibraryWatcher;
+import com.github.qpcrummer.music.MusicUtils;
+import com.github.qpcrummer.music.SongCatalog;
+import com.github.qpcrummer.network.LightBroadcaster;
+import com.github.qpcrummer.network.LightFollower;
+import com.github.qpcrummer.remote.RemoteServer;
 import imgui.ImGui;
 import imgui.ImVec2;
 import imgui.app.Application;
 import imgui.app.Configuration;
 
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.net.InetSocketAddress;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Logger;
 
 public class Main extends Application {
@@ -25,26 +33,97 @@ public class Main extends Application {
     public static final String newLine = System.getProperty("line.separator");
 
     public static void main(String[] args) {
+        boolean mockLights = false;
+        for (String string : args) {
+            if (string.equals("mock")) {
+                mockLights = true;
+            } else if (string.equals("simulate")) {
+                System.exit(simulate());
+            } else if (string.equals("detect")) {
+                MusicUtils.detectOnLoad = true;
+            }
+        }
+
         logger.info("Readying lights");
-        LightUtils.readyLights();
+        LightUtils.readyLights(mockLights);
+
+        for (String string : args) {
+            if (string.startsWith("follow=")) {
+                follow(string.substring("follow=".length()));
+                return;
+            }
+        }
+
+        Directories.createDirectories();
+        Calibration.load();
+        LibraryWatcher.start();
+
+        for (String string : args) {
+            if (string.equals("remote")) {
+                RemoteServer.start(RemoteServer.DEFAULT_PORT);
+            } else if (string.startsWith("remote=")) {
+                RemoteServer.start(Integer.parseInt(string.substring("remote=".length())));
+            } else if (string.equals("lead")) {
+                LightBroadcaster.start(LightBroadcaster.DEFAULT_PORT);
+            } else if (string.startsWith("lead=")) {
+                LightBroadcaster.start(Integer.parseInt(string.substring("lead=".length())));
+            }
+        }
 
         for (String string : args) {
             if (string.equals("cli")) {
                 logger.info("Launching in CUI mode; Type 'help' for a list of commands");
                 cli = true;
-                Executors.newSingleThreadScheduledExecutor().scheduleAtFixedRate(ConsoleReader::new, 0, 1, TimeUnit.SECONDS);
+                ConsoleReader.start();
             }
         }
 
-        if (!cli) {
+        if (cli) {
+            try {
+                ConsoleReader.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } else {
             launch(new Main());
         }
     }
+    /**
+     * Runs the show of every Song in every Playlist without audio, lights or a window, and writes their traces
+     * @return exit code, 1 if any show has problems
+     */
+    private static int simulate() {
+        logger.info("Simulating every show");
+        Directories.createDirectories();
+        final boolean problems = ShowSimulator.simulateAll(MusicUtils.findSongs(MusicUtils.playlists.paths()), 0).stream()
+                .anyMatch(ShowSimulator.Result::hasProblems);
+        SongCatalog.save();
+        return problems ? 1 : 0;
+    }
+
+    /**
+     * Only shows the lights of a leading node, without music or a window, until the JVM is stopped
+     * @param leader host:port of the leader, and optionally :first light, such as 192.168.1.20:8788:12
+     */
+    private static void follow(final String leader) {
+        final String[] parts = leader.split(":");
+        if (parts.length < 2) {
+            logger.warning("Use follow=<host>:<port>[:<first light>]");
+            return;
+        }
+        final int firstLight = parts.length > 2 ? Integer.parseInt(parts[2]) : 0;
+        if (LightFollower.start(new InetSocketAddress(parts[0], Integer.parseInt(parts[1])), firstLight)) {
+            // The follower's Threads are daemons. park can return for no reason, so keep parking
+            while (true) {
+                LockSupport.park();
+            }
+        }
+    }
+
     @Override
     protected void preRun() {
         super.preRun();
         logger.info("Loading Christmas Celebrator");
-        Directories.createDirectories();
     }
 
     @Override
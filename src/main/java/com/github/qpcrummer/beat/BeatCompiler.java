@@ -0,0 +1,184 @@
+package com.github.qpcrummer.beat;
+
+import com.github.qpcrummer.Main;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Compiles the beat txt files of a Song into one BeatFile
+ */
+public final class BeatCompiler {
+    private static final Pattern NUMBER = Pattern.compile("\\d+");
+
+    private BeatCompiler() {
+    }
+
+    /**
+     * Compiles the beats of a Song if there is no compiled file yet, or if a txt file was added, removed, renamed or changed.
+     * A txt file counts as changed if its size or last modified time is different in any way, even older
+     * @param beatDirectory beat directory of the Song
+     * @param compiled Path of the compiled file
+     * @return Path of the compiled file
+     */
+    public static Path compileIfStale(final Path beatDirectory, final Path compiled) throws IOException {
+        final List<Path> sources = listSources(beatDirectory);
+
+        if (Files.isRegularFile(compiled) && describe(sources).equals(BeatFile.readSources(compiled))) {
+            return compiled;
+        }
+
+        compile(sources, compiled);
+        return compiled;
+    }
+
+    /**
+     * Gets the name, size and last modified time of every txt file, as they are written into the compiled file
+     */
+    private static List<BeatFile.Source> describe(final List<Path> sources) throws IOException {
+        final List<BeatFile.Source> described = new ArrayList<>(sources.size());
+        for (final Path source : sources) {
+            final BasicFileAttributes attributes = Files.readAttributes(source, BasicFileAttributes.class);
+            described.add(new BeatFile.Source(source.getFileName().toString(), attributes.size(),
+                    attributes.lastModifiedTime().toMillis()));
+        }
+        return described;
+    }
+
+    /**
+     * Lists the txt files of a beat directory
+     * @param beatDirectory beat directory of a Song
+     * @return every regular file that isn't a compiled file
+     */
+    static List<Path> listSources(final Path beatDirectory) throws IOException {
+        try (final Stream<Path> files = Files.list(beatDirectory)) {
+            return files.filter(Files::isRegularFile)
+                    .filter(file -> !file.getFileName().toString().startsWith(BeatFile.FILE_NAME))
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    /**
+     * Parses the txt files and writes them as a BeatFile
+     * @param sources txt files, one per channel file
+     * @param compiled Path to write to
+     */
+    static void compile(final List<Path> sources, final Path compiled) throws IOException {
+        // Each caller gets its own temporary file, since the same Song can be compiled from several threads at once.
+        // Its name starts with FILE_NAME so listSources never takes it for a txt file
+        final Path temporary = Files.createTempFile(compiled.getParent(), BeatFile.FILE_NAME, ".tmp");
+        try {
+            writeCompiled(sources, temporary);
+            Files.move(temporary, compiled, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private static void writeCompiled(final List<Path> sources, final Path temporary) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.writeInt(BeatFile.MAGIC);
+            out.writeInt(BeatFile.VERSION);
+            out.writeInt(sources.size());
+            // Taken before the files are parsed, so a file that changes while it is compiled is compiled again next time
+            for (final BeatFile.Source source : describe(sources)) {
+                final byte[] name = source.name().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(name.length);
+                out.write(name);
+                out.writeLong(source.size());
+                out.writeLong(source.modified());
+            }
+
+            for (final Path source : sources) {
+                final int[] ids = extractIntArray(source.getFileName().toString());
+                final long[][] beats = parse(source);
+
+                out.writeInt(ids.length);
+                for (final int id : ids) {
+                    out.writeInt(id);
+                }
+                out.writeInt(beats[0].length);
+                for (final long start : beats[0]) {
+                    out.writeLong(start);
+                }
+                for (final long end : beats[1]) {
+                    out.writeLong(end);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads one txt file. Each line is either "start" or "[start, end]" in microseconds
+     * @param source txt file
+     * @return start times and end times sorted by start time. Single beats end at BeatFile.NO_END
+     */
+    private static long[][] parse(final Path source) throws IOException {
+        final List<long[]> beats = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(source)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+
+                try {
+                    if (line.startsWith("[")) {
+                        final String[] elements = line.substring(1, line.indexOf(']')).split(",");
+                        final long start = Long.parseLong(elements[0].trim());
+                        final long end = Long.parseLong(elements[1].trim());
+                        beats.add(new long[]{start, end});
+                    } else {
+                        beats.add(new long[]{Long.parseLong(line), BeatFile.NO_END});
+                    }
+                } catch (NumberFormatException | IndexOutOfBoundsException e) {
+                    Main.logger.warning("Skipping invalid beat '" + line + "' in File: " + source);
+                }
+            }
+        }
+
+        beats.sort((a, b) -> Long.compare(a[0], b[0]));
+        final long[] starts = new long[beats.size()];
+        final long[] ends = new long[beats.size()];
+        for (int i = 0; i < starts.length; i++) {
+            starts[i] = beats.get(i)[0];
+            ends[i] = beats.get(i)[1];
+        }
+        return new long[][]{starts, ends};
+    }
+
+    /**
+     * Finds the channels of a channel file from the numbers in its name
+     * @param input file name, such as "1_2_3.txt"
+     * @return channel numbers
+     */
+    static int[] extractIntArray(final String input) {
+        final Matcher matcher = NUMBER.matcher(input);
+
+        int[] numbers = new int[4];
+        int count = 0;
+        while (matcher.find()) {
+            if (count == numbers.length) {
+                numbers = Arrays.copyOf(numbers, count * 2);
+            }
+            numbers[count++] = Integer.parseInt(matcher.group());
+        }
+
+        return Arrays.copyOf(numbers, count);
+    }
+}
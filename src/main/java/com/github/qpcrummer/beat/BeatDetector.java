@@ -0,0 +1,300 @@
+package com.github.qpcrummer.beat;
+
+import com.github.qpcrummer.Main;
+import com.github.qpcrummer.directories.Directories;
+import com.github.qpcrummer.music.MusicUtils;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Finds beats in the audio of a Song with spectral flux onset detection, and writes them as beat txt files.
+ * The spectrum is split into bands, and every band becomes one channel file
+ */
+public final class BeatDetector {
+    private static final int FRAME = 1024;
+    private static final int HOP = 512;
+    // Upper edge of each band in Hz, from bass to treble
+    private static final double[] BAND_EDGES = {150, 600, 2500, Double.MAX_VALUE};
+    private static final String[] BAND_FILES = {"0_1_2.txt", "3_4_5.txt", "6_7_8.txt", "9_10_11.txt"};
+    // Frames on each side of a frame that its threshold is averaged over
+    private static final int THRESHOLD_WINDOW = 10;
+    private static final double THRESHOLD_MULTIPLIER = 1.5;
+    // Shortest time between two beats of a band, in microseconds
+    private static final long MIN_GAP = 120_000;
+    // Shared by every detect command. Its threads are daemons and only exist while there is work
+    private static final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    private final double[] window = new double[FRAME];
+    private final double[] real = new double[FRAME];
+    private final double[] imaginary = new double[FRAME];
+    private final double[] magnitudes = new double[FRAME / 2];
+    private final double[] previous = new double[FRAME / 2];
+    private final float[][] flux = new float[BAND_EDGES.length][1024];
+    private int frames;
+
+    private BeatDetector() {
+    }
+
+    /**
+     * Detects beats for every Song whose beat directory is missing or has no beat txt files, in parallel on a ForkJoinPool.
+     * This returns straight away and logs once every Song is done
+     * @param songs Song paths
+     */
+    public static void detectMissing(final Path[] songs) {
+        final AtomicInteger detected = new AtomicInteger();
+        pool.execute(() -> {
+            try {
+                Arrays.stream(songs).parallel()
+                        .filter(BeatDetector::needsBeats)
+                        .forEach(song -> {
+                            if (detect(song)) {
+                                detected.incrementAndGet();
+                            }
+                        });
+                Main.logger.info("Detected beats for " + detected.get() + " Songs");
+            } catch (RuntimeException e) {
+                Main.logger.warning("Beat detection failed: " + e);
+            }
+        });
+    }
+
+    private static boolean needsBeats(final Path song) {
+        final Path beatDirectory = Directories.getBeatPath(song);
+        try {
+            return Files.notExists(beatDirectory) || Files.isDirectory(beatDirectory) && BeatCompiler.listSources(beatDirectory).isEmpty();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Detects and writes the beats of one Song
+     * @param song Song path
+     * @return true if beat files were written
+     */
+    public static boolean detect(final Path song) {
+        try {
+            final long[][] beats = new BeatDetector().analyse(song);
+            write(Directories.getBeatPath(song), beats);
+            return true;
+        } catch (UnsupportedAudioFileException | IOException e) {
+            Main.logger.warning("Failed to detect beats for Song: " + song);
+            return false;
+        }
+    }
+
+    /**
+     * Streams the Song through an FFT a frame at a time, then picks the peaks of each band's flux
+     * @return beat start times in microseconds for every band
+     */
+    private long[][] analyse(final Path song) throws UnsupportedAudioFileException, IOException {
+        final float sampleRate;
+        try (AudioInputStream stream = MusicUtils.openAudio(song, true)) {
+            final AudioFormat format = stream.getFormat();
+            sampleRate = format.getSampleRate();
+            readFrames(stream, format.getChannels(), sampleRate);
+        }
+
+        final long[][] beats = new long[BAND_EDGES.length][];
+        for (int band = 0; band < beats.length; band++) {
+            beats[band] = pickPeaks(this.flux[band], sampleRate);
+        }
+        return beats;
+    }
+
+    private void readFrames(final AudioInputStream stream, final int channels, final float sampleRate) throws IOException {
+        final int frameSize = channels * 2;
+        final byte[] buffer = new byte[HOP * frameSize];
+        final int[] bandStarts = bandStarts(sampleRate);
+
+        while (true) {
+            int read = 0;
+            while (read < buffer.length) {
+                final int count = stream.read(buffer, read, buffer.length - read);
+                if (count < 0) {
+                    break;
+                }
+                read += count;
+            }
+            if (read < buffer.length) {
+                return;
+            }
+
+            // Slide the window along by one hop and add the new samples mixed down to mono
+            System.arraycopy(this.window, HOP, this.window, 0, FRAME - HOP);
+            for (int i = 0; i < HOP; i++) {
+                int sum = 0;
+                for (int channel = 0; channel < channels; channel++) {
+                    final int offset = i * frameSize + channel * 2;
+                    sum += (short) ((buffer[offset] & 0xFF) | (buffer[offset + 1] << 8));
+                }
+                this.window[FRAME - HOP + i] = sum / (channels * 32768.0);
+            }
+
+            addFlux(bandStarts);
+        }
+    }
+
+    /**
+     * Transforms the current window and adds the rise in magnitude of every band to the flux
+     */
+    private void addFlux(final int[] bandStarts) {
+        for (int i = 0; i < FRAME; i++) {
+            // Hann window
+            this.real[i] = this.window[i] * (0.5 - 0.5 * Math.cos(2 * Math.PI * i / (FRAME - 1)));
+            this.imaginary[i] = 0;
+        }
+        fft(this.real, this.imaginary);
+
+        for (int band = 0; band < BAND_EDGES.length; band++) {
+            final int end = band + 1 < bandStarts.length ? bandStarts[band + 1] : FRAME / 2;
+            double rise = 0;
+            for (int bin = bandStarts[band]; bin < end; bin++) {
+                final double magnitude = Math.log1p(Math.hypot(this.real[bin], this.imaginary[bin]));
+                rise += Math.max(0, magnitude - this.previous[bin]);
+                this.magnitudes[bin] = magnitude;
+            }
+
+            if (this.frames == this.flux[band].length) {
+                this.flux[band] = Arrays.copyOf(this.flux[band], this.frames * 2);
+            }
+            this.flux[band][this.frames] = (float) rise;
+        }
+        System.arraycopy(this.magnitudes, 0, this.previous, 0, this.previous.length);
+        this.frames++;
+    }
+
+    /**
+     * First FFT bin of every band
+     */
+    private static int[] bandStarts(final float sampleRate) {
+        final int[] starts = new int[BAND_EDGES.length];
+        starts[0] = 1;
+        for (int band = 1; band < starts.length; band++) {
+            final int bin = (int) (BAND_EDGES[band - 1] * FRAME / sampleRate);
+            starts[band] = Math.max(starts[band - 1], Math.min(bin, FRAME / 2));
+        }
+        return starts;
+    }
+
+    /**
+     * Picks frames whose flux is a local maximum above the average of the frames around it
+     * @return beat start times in microseconds
+     */
+    private long[] pickPeaks(final float[] bandFlux, final float sampleRate) {
+        long[] beats = new long[64];
+        int count = 0;
+        long last = -MIN_GAP;
+
+        // Quiet passages shouldn't turn noise into beats, so the threshold never drops far below the song's average
+        double total = 0;
+        for (int frame = 0; frame < this.frames; frame++) {
+            total += bandFlux[frame];
+        }
+        final double floor = this.frames == 0 ? 0 : total / this.frames * 0.5;
+
+        double sum = 0;
+        int windowStart = 0;
+        int windowEnd = 0;
+        for (int frame = 0; frame < this.frames; frame++) {
+            // Keep sum over [frame - THRESHOLD_WINDOW, frame + THRESHOLD_WINDOW]
+            while (windowEnd < this.frames && windowEnd <= frame + THRESHOLD_WINDOW) {
+                sum += bandFlux[windowEnd++];
+            }
+            while (windowStart < frame - THRESHOLD_WINDOW) {
+                sum -= bandFlux[windowStart++];
+            }
+            final double threshold = Math.max(sum / (windowEnd - windowStart) * THRESHOLD_MULTIPLIER, floor);
+
+            final float value = bandFlux[frame];
+            final boolean peak = value > threshold
+                    && (frame == 0 || value >= bandFlux[frame - 1])
+                    && (frame == this.frames - 1 || value > bandFlux[frame + 1]);
+            if (!peak) {
+                continue;
+            }
+
+            final long time = (long) ((frame * (double) HOP + FRAME / 2.0) * 1_000_000 / sampleRate);
+            if (time - last >= MIN_GAP) {
+                if (count == beats.length) {
+                    beats = Arrays.copyOf(beats, count * 2);
+                }
+                beats[count++] = time;
+                last = time;
+            }
+        }
+        return Arrays.copyOf(beats, count);
+    }
+
+    /**
+     * In-place radix-2 FFT
+     * @param real real parts, length must be a power of 2
+     * @param imaginary imaginary parts
+     */
+    static void fft(final double[] real, final double[] imaginary) {
+        final int n = real.length;
+        for (int i = 1, j = 0; i < n; i++) {
+            int bit = n >> 1;
+            for (; (j & bit) != 0; bit >>= 1) {
+                j ^= bit;
+            }
+            j ^= bit;
+            if (i < j) {
+                double temp = real[i];
+                real[i] = real[j];
+                real[j] = temp;
+                temp = imaginary[i];
+                imaginary[i] = imaginary[j];
+                imaginary[j] = temp;
+            }
+        }
+
+        for (int length = 2; length <= n; length <<= 1) {
+            final double angle = -2 * Math.PI / length;
+            final double stepReal = Math.cos(angle);
+            final double stepImaginary = Math.sin(angle);
+            for (int start = 0; start < n; start += length) {
+                double twiddleReal = 1;
+                double twiddleImaginary = 0;
+                for (int k = 0; k < length / 2; k++) {
+                    final int even = start + k;
+                    final int odd = even + length / 2;
+                    final double oddReal = real[odd] * twiddleReal - imaginary[odd] * twiddleImaginary;
+                    final double oddImaginary = real[odd] * twiddleImaginary + imaginary[odd] * twiddleReal;
+                    real[odd] = real[even] - oddReal;
+                    imaginary[odd] = imaginary[even] - oddImaginary;
+                    real[even] += oddReal;
+                    imaginary[even] += oddImaginary;
+
+                    final double nextReal = twiddleReal * stepReal - twiddleImaginary * stepImaginary;
+                    twiddleImaginary = twiddleReal * stepImaginary + twiddleImaginary * stepReal;
+                    twiddleReal = nextReal;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes one beat txt file per band, in the same format people write them by hand
+     */
+    private static void write(final Path beatDirectory, final long[][] beats) throws IOException {
+        Files.createDirectories(beatDirectory);
+        for (int band = 0; band < beats.length; band++) {
+            try (BufferedWriter writer = Files.newBufferedWriter(beatDirectory.resolve(BAND_FILES[band]))) {
+                for (final long beat : beats[band]) {
+                    writer.write(Long.toString(beat));
+                    writer.newLine();
+                }
+            }
+        }
+    }
+}
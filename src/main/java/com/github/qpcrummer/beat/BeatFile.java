@@ -0,0 +1,129 @@
+package com.github.qpcrummer.beat;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compiled beats of a Song. The file is laid out as:
+ * <pre>
+ * int    magic "CJBT"
+ * int    version
+ * int    channel file count
+ * for every channel file, the txt file it was compiled from:
+ *   int    length of the UTF-8 file name, followed by the name
+ *   long   size
+ *   long   last modified time in milliseconds
+ * for every channel file:
+ *   int    channel count, followed by the channels
+ *   int    beat count
+ *   long[] start times, sorted
+ *   long[] end times, NO_END for a single beat
+ * </pre>
+ * All times are in microseconds
+ */
+public final class BeatFile {
+    public static final String FILE_NAME = "beats.bin";
+    public static final long NO_END = -1;
+    static final int MAGIC = 0x434A4254;
+    static final int VERSION = 2;
+
+    /**
+     * A txt file as it was when it was compiled
+     * @param name file name
+     * @param size size in bytes
+     * @param modified last modified time in milliseconds
+     */
+    record Source(String name, long size, long modified) {
+    }
+
+    private BeatFile() {
+    }
+
+    /**
+     * Maps a compiled file into memory and creates its Channels
+     * @param compiled Path from BeatCompiler
+     * @return Channels of the Song
+     */
+    public static List<Channel> read(final Path compiled) throws IOException {
+        final ByteBuffer buffer = map(compiled);
+        final List<Channel> channels;
+
+        try {
+            final int count = readSources(buffer).size();
+            channels = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                final int[] ids = new int[buffer.getInt()];
+                for (int j = 0; j < ids.length; j++) {
+                    ids[j] = buffer.getInt();
+                }
+
+                final int beats = buffer.getInt();
+                final LongBuffer starts = slice(buffer, beats);
+                final LongBuffer ends = slice(buffer, beats);
+                channels.add(new Channel(ids, starts, ends));
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IOException("Truncated beat file: " + compiled, e);
+        }
+        return channels;
+    }
+
+    /**
+     * Reads only the header to find the txt files the file was compiled from
+     * @param compiled Path from BeatCompiler
+     * @return txt files in the order they were compiled, or null if the file can't be read
+     */
+    static List<Source> readSources(final Path compiled) {
+        try {
+            return readSources(map(compiled));
+        } catch (IOException | BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static List<Source> readSources(final ByteBuffer buffer) {
+        final int count = buffer.getInt();
+        if (count < 0) {
+            throw new IllegalArgumentException("Negative channel file count");
+        }
+        final List<Source> sources = new ArrayList<>(Math.min(count, 1024));
+        for (int i = 0; i < count; i++) {
+            final byte[] name = new byte[buffer.getInt()];
+            buffer.get(name);
+            sources.add(new Source(new String(name, StandardCharsets.UTF_8), buffer.getLong(), buffer.getLong()));
+        }
+        return sources;
+    }
+
+    /**
+     * Maps the file and checks its header
+     * @return buffer positioned after the version
+     */
+    private static ByteBuffer map(final Path compiled) throws IOException {
+        final MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(compiled, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        if (buffer.remaining() < 12 || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            throw new IOException("Not a compiled beat file: " + compiled);
+        }
+        return buffer;
+    }
+
+    private static LongBuffer slice(final ByteBuffer buffer, final int longs) {
+        final int bytes = longs * Long.BYTES;
+        final LongBuffer slice = buffer.slice(buffer.position(), bytes).asLongBuffer();
+        buffer.position(buffer.position() + bytes);
+        return slice;
+    }
+}
@@ -2,31 +2,46 @@ package com.github.qpcrummer.beat;
 
 import com.github.qpcrummer.Main;
 import com.github.qpcrummer.directories.Directories;
-import com.github.qpcrummer.music.WAVPlayer;
+import com.github.qpcrummer.directories.SongCache;
+import com.github.qpcrummer.light.LightUtils;
+import com.github.qpcrummer.metrics.Metrics;
+import com.github.qpcrummer.network.LightBroadcaster;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.Stream;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
 
 public class BeatManager {
-    private ScheduledExecutorService executorService;
-    private final List<Channel> channels = new ArrayList<>();
-    private int lastSong;
+    // Longest the tracker sleeps before checking the clock again, in microseconds
+    private static final long MAX_SLEEP = 100_000;
+    private volatile Thread tracker;
+    private LongSupplier clock;
+    private volatile boolean running;
+    private volatile boolean paused;
+    private volatile int generation;
+    private volatile BeatTimeline timeline = BeatTimeline.EMPTY;
+    private volatile int lastSong = -1;
+    // How early each light fires, in microseconds
+    private volatile long[] lightOffsets = new long[BeatTimeline.MAX_LIGHTS];
     public BeatManager() {
     }
 
     /**
-     * Sets up the Threads for the BeatManager
+     * Sets up the Thread for the BeatManager
+     * @param clock position of the song in microseconds
      */
-    public void initialize() {
-        this.executorService = Executors.newScheduledThreadPool(1);
+    public void initialize(final LongSupplier clock) {
+        this.clock = clock;
+        if (this.tracker == null) {
+            this.running = true;
+            this.tracker = new Thread(this::track, "Beat Tracker");
+            this.tracker.setDaemon(true);
+            this.tracker.setPriority(Thread.MAX_PRIORITY);
+            this.tracker.start();
+        }
     }
 
     /**
@@ -35,81 +50,187 @@ public class BeatManager {
      */
     public void readBeats(final Path song, final int index) {
         if (index != this.lastSong) {
-            channels.clear();
-
-            try {
-                final Path beatDirectory = Directories.getBeatPath(song);
-                if (Files.isDirectory(beatDirectory)) {
-                    try (final Stream<Path> filesStream = Files.list(beatDirectory)) {
-                        filesStream
-                                .filter(Files::isRegularFile)
-                                .forEach(this::readBeatsFromFile);
-                    }
-                }
-            } catch (IOException e) {
-                Main.logger.warning("Failed to read beats for Song: " + song);
-            }
-
-            lastSong = index;
+            setBeats(loadBeats(song), index);
         }
     }
 
-    private void readBeatsFromFile(final Path filePath) {
-        try (BufferedReader reader = Files.newBufferedReader(filePath)) {
-            final List<Object> beats = new ArrayList<>();
-            String line;
-            while ((line = reader.readLine()) != null) {
-
-                if (line.contains("[")) {
-                    final String[] elements = line.replaceAll("[\\[\\]]", "").split(",\\s*");
-
-                    final long[] longArray = new long[elements.length];
-                    for (int i = 0; i < elements.length; i++) {
-                        longArray[i] = Long.parseLong(elements[i]);
-                    }
-                    beats.add(longArray);
-                } else {
-                    beats.add(Long.parseLong(line));
-                }
+    /**
+     * Loads the compiled beats of a Song and merges its channel files, without touching the beats that are currently playing.
+     * The beat txt files are compiled into the SongCache first if they changed. A Song's beat directory is created
+     * the first time it is loaded, ready for beat txt files. This is safe to call from any Thread
+     * @param song Song to read the beats of
+     * @return BeatTimeline of the Song
+     */
+    public BeatTimeline loadBeats(final Path song) {
+        try {
+            final Path beatDirectory = Directories.getBeatPath(song);
+            if (Files.notExists(beatDirectory)) {
+                Files.createDirectories(beatDirectory);
+            } else if (Files.isDirectory(beatDirectory)) {
+                final Path compiled = SongCache.getEntry(song).resolve(BeatFile.FILE_NAME);
+                return BeatTimeline.merge(BeatFile.read(BeatCompiler.compileIfStale(beatDirectory, compiled)), this.lightOffsets);
             }
-            channels.add(new Channel(filePath.toFile().getName(), beats));
         } catch (IOException e) {
-            Main.logger.warning("Failed to read beats from File: " + filePath);
+            Main.logger.warning("Failed to read beats for Song: " + song);
+        }
+        return BeatTimeline.EMPTY;
+    }
+
+    /**
+     * Sets how early each light fires, to make up for relays that are slow to switch.
+     * This is used by the next loadBeats
+     * @param offsets offset of each light in microseconds, index n is light n
+     */
+    public void setLightOffsets(final long[] offsets) {
+        this.lightOffsets = offsets.clone();
+    }
+
+    /**
+     * Gets the BeatTimeline that is being tracked
+     * @return current BeatTimeline
+     */
+    public BeatTimeline getTimeline() {
+        return this.timeline;
+    }
+
+    /**
+     * Replaces the beats that are tracked
+     * @param timeline BeatTimeline from loadBeats
+     * @param index index of the Song the beats belong to
+     */
+    public synchronized void setBeats(final BeatTimeline timeline, final int index) {
+        this.timeline = timeline;
+        this.lastSong = index;
+        rearm();
+    }
+
+    /**
+     * Swaps in new beats for the Song that is being tracked, such as after its beat files were edited.
+     * Nothing happens if a different Song has been set since
+     * @param timeline BeatTimeline from loadBeats
+     * @param index index of the Song the beats belong to
+     * @return true if the beats were replaced
+     */
+    public synchronized boolean replaceBeats(final BeatTimeline timeline, final int index) {
+        if (index != this.lastSong) {
+            return false;
         }
+        setBeats(timeline, index);
+        return true;
+    }
+
+    /**
+     * Moves the beats that are tracked to another Song index, after Songs before it were removed from the list
+     * @param index new index of the Song, or -1 if it was removed
+     */
+    public synchronized void renumber(final int index) {
+        this.lastSong = index;
     }
 
     /**
-     * Starts testing for beats every 25 ms
+     * Starts tracking the beats set with setBeats
      */
     public void startBeatTracking() {
-        if (!this.channels.isEmpty()) {
-            for (Channel channel : this.channels) {
-                channel.reset();
+        this.paused = false;
+        rearm();
+    }
+
+    /**
+     * Stops firing beats until resumed. The clock doesn't move while paused, so there is nothing to wait for
+     * @param paused true to pause
+     */
+    public void setPaused(final boolean paused) {
+        this.paused = paused;
+        rearm();
+    }
+
+    /**
+     * Makes the tracker find its place in the timeline again and show the lights that should be on there.
+     * Call this whenever the clock jumps, such as after a seek
+     */
+    public void rearm() {
+        this.generation++;
+        final Thread thread = this.tracker;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Walks the BeatTimeline and sleeps until the next event is due.
+     * Every event that is due is applied as one write of the light state, and how late it was is recorded.
+     * When this node leads, events are also sent to the followers a little before they are due
+     */
+    private void track() {
+        BeatTimeline current = BeatTimeline.EMPTY;
+        int cursor = 0;
+        // Next event to send to followers, which runs up to LightBroadcaster.LEAD ahead of the cursor
+        int sent = 0;
+        int armed = this.generation - 1;
+
+        while (this.running && this.tracker == Thread.currentThread()) {
+            if (armed != this.generation) {
+                armed = this.generation;
+                current = this.timeline;
+                cursor = current.indexAfter(this.clock.getAsLong());
+                sent = cursor;
+                final long state = cursor > 0 ? current.getState(cursor - 1) : 0;
+                LightUtils.setLights(state);
+                // Followers drop anything queued from before and show this straight away
+                LightBroadcaster.reset(armed, state);
             }
 
-            this.executorService.scheduleAtFixedRate(() -> {
-                long currentPos = WAVPlayer.getCurrentPositionLessAccurate();
+            if (cursor >= current.size() || this.paused) {
+                LockSupport.park(this);
+                continue;
+            }
+
+            final long position = this.clock.getAsLong();
+            final boolean leading = LightBroadcaster.isRunning();
+            if (leading) {
+                while (sent < current.size() && current.getTime(sent) - position <= LightBroadcaster.LEAD) {
+                    LightBroadcaster.send(armed, current.getState(sent), current.getTime(sent) - position);
+                    sent++;
+                }
+            }
 
-                for (Channel channel : this.channels) {
-                    channel.beatCheck(currentPos);
+            if (current.getTime(cursor) <= position) {
+                while (cursor < current.size() && current.getTime(cursor) <= position) {
+                    Metrics.beatLateness.record(position - current.getTime(cursor));
+                    cursor++;
                 }
-            }, 0, 25, TimeUnit.MILLISECONDS);
+                LightUtils.setLights(current.getState(cursor - 1));
+            }
+
+            if (cursor < current.size()) {
+                long wait = Math.min(current.getTime(cursor) - position, MAX_SLEEP);
+                if (leading && sent < current.size()) {
+                    wait = Math.min(wait, current.getTime(sent) - LightBroadcaster.LEAD - position);
+                }
+                LockSupport.parkNanos(this, TimeUnit.MICROSECONDS.toNanos(wait));
+            }
         }
     }
 
-
     /**
      * Completely stops the Thread and sends it off to the GC
      */
     public void stopThread() {
-        executorService.shutdownNow();
+        this.running = false;
+        final Thread thread = this.tracker;
+        this.tracker = null;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
     }
 
     /**
      * Cancels all current tasks.
      * This is usually called after the song that it was initially tracking was removed (skipped)
      */
-    public void resetBeats() {
-        this.channels.clear();
+    public synchronized void resetBeats() {
+        this.timeline = BeatTimeline.EMPTY;
+        this.lastSong = -1;
+        rearm();
     }
 }
@@ -0,0 +1,228 @@
+package com.github.qpcrummer.beat;
+
+import com.github.qpcrummer.Main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+/**
+ * Every channel file of a Song merged into one sorted stream of events.
+ * Each event is a time and the state of all lights from that time on, where bit n is light n
+ */
+public final class BeatTimeline {
+    public static final BeatTimeline EMPTY = new BeatTimeline(new long[0], new long[0]);
+    public static final int MAX_LIGHTS = Long.SIZE;
+    // Bits of an end key that hold the channel file index
+    private static final int FILE_BITS = 16;
+
+    private final long[] times;
+    private final long[] states;
+
+    private BeatTimeline(final long[] times, final long[] states) {
+        this.times = times;
+        this.states = states;
+    }
+
+    /**
+     * K-way merges the beats of every channel file. Beats that overlap on a light are joined,
+     * so the light only turns off once the last of them ends
+     * @param channels Channels of a Song
+     * @return merged timeline
+     */
+    public static BeatTimeline merge(final List<Channel> channels) {
+        final int files = channels.size();
+        if (files == 0) {
+            return EMPTY;
+        }
+        if (files >= 1 << FILE_BITS) {
+            Main.logger.warning("Too many channel files, only the first " + ((1 << FILE_BITS) - 1) + " are used");
+        }
+        final int used = Math.min(files, (1 << FILE_BITS) - 1);
+
+        final long[] masks = new long[used];
+        int beats = 0;
+        for (int i = 0; i < used; i++) {
+            masks[i] = toMask(channels.get(i).channels);
+            beats += channels.get(i).size();
+        }
+
+        // Starts are already sorted per file, so they are merged with a queue of files.
+        // End times can overlap within a file, so they are collected and sorted once
+        final int[] cursors = new int[used];
+        final long[] ends = new long[beats];
+        int endCount = 0;
+        final PriorityQueue<Integer> starts = new PriorityQueue<>(used,
+                (a, b) -> Long.compare(channels.get(a).getStart(cursors[a]), channels.get(b).getStart(cursors[b])));
+        for (int i = 0; i < used; i++) {
+            final Channel channel = channels.get(i);
+            for (int beat = 0; beat < channel.size(); beat++) {
+                if (channel.getEnd(beat) > channel.getStart(beat)) {
+                    ends[endCount++] = (channel.getEnd(beat) << FILE_BITS) | i;
+                }
+            }
+            skipEmptyBeats(channel, cursors, i);
+            if (cursors[i] < channel.size()) {
+                starts.add(i);
+            }
+        }
+        Arrays.sort(ends, 0, endCount);
+
+        final int[] lit = new int[MAX_LIGHTS];
+        final long[] times = new long[endCount * 2];
+        final long[] states = new long[endCount * 2];
+        int events = 0;
+        int endIndex = 0;
+        long state = 0;
+
+        while (!starts.isEmpty() || endIndex < endCount) {
+            final long nextStart = starts.isEmpty() ? Long.MAX_VALUE : channels.get(starts.peek()).getStart(cursors[starts.peek()]);
+            final long nextEnd = endIndex < endCount ? ends[endIndex] >>> FILE_BITS : Long.MAX_VALUE;
+            final long time = Math.min(nextStart, nextEnd);
+            long newState = state;
+
+            // Ends go first, so a beat that starts as another ends keeps the light on
+            while (endIndex < endCount && ends[endIndex] >>> FILE_BITS == time) {
+                final int file = (int) (ends[endIndex] & ((1 << FILE_BITS) - 1));
+                newState = count(lit, masks[file], -1, newState);
+                endIndex++;
+            }
+            while (!starts.isEmpty() && channels.get(starts.peek()).getStart(cursors[starts.peek()]) == time) {
+                final int file = starts.poll();
+                final Channel channel = channels.get(file);
+                newState = count(lit, masks[file], 1, newState);
+                cursors[file]++;
+                skipEmptyBeats(channel, cursors, file);
+                if (cursors[file] < channel.size()) {
+                    starts.add(file);
+                }
+            }
+
+            if (newState != state) {
+                state = newState;
+                times[events] = time;
+                states[events] = state;
+                events++;
+            }
+        }
+
+        return new BeatTimeline(Arrays.copyOf(times, events), Arrays.copyOf(states, events));
+    }
+
+    /**
+     * Merges like merge, but fires every light earlier by its own offset, such as to make up for a slow relay
+     * @param channels Channels of a Song
+     * @param lightOffsets how early each light fires in microseconds, bit n of a state is index n
+     * @return merged timeline
+     */
+    public static BeatTimeline merge(final List<Channel> channels, final long[] lightOffsets) {
+        final List<Channel> shifted = new ArrayList<>(channels.size());
+        for (final Channel channel : channels) {
+            // Lights of one channel file that have different offsets become separate Channels
+            final Map<Long, List<Integer>> groups = new TreeMap<>();
+            for (final int light : channel.channels) {
+                final long offset = light >= 0 && light < lightOffsets.length ? lightOffsets[light] : 0;
+                groups.computeIfAbsent(offset, key -> new ArrayList<>()).add(light);
+            }
+
+            for (final Map.Entry<Long, List<Integer>> group : groups.entrySet()) {
+                final int[] lights = group.getValue().stream().mapToInt(Integer::intValue).toArray();
+                final long offset = group.getKey();
+                if (offset == 0) {
+                    shifted.add(new Channel(lights, channel.starts, channel.ends));
+                    continue;
+                }
+
+                final long[] starts = new long[channel.size()];
+                final long[] ends = new long[channel.size()];
+                for (int beat = 0; beat < starts.length; beat++) {
+                    starts[beat] = Math.max(0, channel.starts[beat] - offset);
+                    ends[beat] = channel.ends[beat] == BeatFile.NO_END ? BeatFile.NO_END : Math.max(0, channel.ends[beat] - offset);
+                }
+                shifted.add(new Channel(lights, starts, ends));
+            }
+        }
+        return merge(shifted);
+    }
+
+    /**
+     * Moves a cursor past beats that end before they start, since they never light anything
+     */
+    private static void skipEmptyBeats(final Channel channel, final int[] cursors, final int file) {
+        while (cursors[file] < channel.size() && channel.getEnd(cursors[file]) <= channel.getStart(cursors[file])) {
+            cursors[file]++;
+        }
+    }
+
+    /**
+     * Adds or removes one beat from every light in mask
+     * @param lit number of beats holding each light on
+     * @return state with the lights that are held by at least one beat
+     */
+    private static long count(final int[] lit, final long mask, final int change, final long state) {
+        long newState = state;
+        long remaining = mask;
+        while (remaining != 0) {
+            final int light = Long.numberOfTrailingZeros(remaining);
+            lit[light] += change;
+            if (lit[light] > 0) {
+                newState |= 1L << light;
+            } else {
+                newState &= ~(1L << light);
+            }
+            remaining &= remaining - 1;
+        }
+        return newState;
+    }
+
+    private static long toMask(final int[] lights) {
+        long mask = 0;
+        for (final int light : lights) {
+            if (light >= 0 && light < MAX_LIGHTS) {
+                mask |= 1L << light;
+            } else {
+                Main.logger.warning("Ignoring light " + light + ", only " + MAX_LIGHTS + " lights are supported");
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Binary searches for the first event after a time
+     * @param time time in microseconds
+     * @return index of the first event later than time, or size() if there is none
+     */
+    public int indexAfter(final long time) {
+        final int index = Arrays.binarySearch(this.times, time);
+        return index >= 0 ? index + 1 : -index - 1;
+    }
+
+    /**
+     * Number of events
+     * @return event count
+     */
+    public int size() {
+        return this.times.length;
+    }
+
+    /**
+     * Time of an event
+     * @param event index of the event
+     * @return time in microseconds
+     */
+    public long getTime(final int event) {
+        return this.times[event];
+    }
+
+    /**
+     * State of the lights from an event on
+     * @param event index of the event
+     * @return lit lights, bit n is light n
+     */
+    public long getState(final int event) {
+        return this.states[event];
+    }
+}
@@ -1,77 +1,67 @@
 package com.github.qpcrummer.beat;
 
-import com.github.qpcrummer.light.LightUtils;
-
-import java.util.ArrayList;
-import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.nio.LongBuffer;
 
+/**
+ * The beats of one channel file. BeatTimeline merges these into the events that drive the lights
+ */
 public class Channel {
+    /**
+     * How long a beat without an end time stays on, in microseconds
+     */
+    public static final long DEFAULT_HOLD = 200_000;
     public final int[] channels;
-    public final List<Object> beats;
-    public int index = 0;
-
-    public Channel(final String fileName, final List<Object> beats) {
-        this.channels = this.extractIntArray(fileName);
-        this.beats = beats;
-    }
-
-    private int[] extractIntArray(final String input) {
-        final Pattern pattern = Pattern.compile("\\d+");
-        final Matcher matcher = pattern.matcher(input);
-
-        final ArrayList<Integer> numberList = new ArrayList<>();
-        while (matcher.find()) {
-            final int number = Integer.parseInt(matcher.group());
-            numberList.add(number);
-        }
+    final long[] starts;
+    final long[] ends;
 
-        final int[] numbers = new int[numberList.size()];
-        for (int i = 0; i < numberList.size(); i++) {
-            numbers[i] = numberList.get(i);
-        }
-
-        return numbers;
+    /**
+     * @param channels channels that blink on every beat
+     * @param starts start times from a BeatFile
+     * @param ends end times from a BeatFile
+     */
+    public Channel(final int[] channels, final LongBuffer starts, final LongBuffer ends) {
+        this.channels = channels;
+        this.starts = new long[starts.limit()];
+        this.ends = new long[ends.limit()];
+        starts.get(0, this.starts);
+        ends.get(0, this.ends);
     }
 
-    public void beatCheck(long currentPosition) {
-        if (isTimeClose(currentPosition, getBeat())) {
-            event();
-        }
+    /**
+     * @param channels channels that blink on every beat
+     * @param starts start times in microseconds, sorted
+     * @param ends end times in microseconds, or BeatFile.NO_END to use DEFAULT_HOLD
+     */
+    public Channel(final int[] channels, final long[] starts, final long[] ends) {
+        this.channels = channels;
+        this.starts = starts;
+        this.ends = ends;
     }
 
-    private long getBeat() {
-        final Object preBeat = beats.get(index);
-
-        if (preBeat instanceof long[] array) {
-            return array[0];
-        } else {
-            return (long)preBeat;
-        }
+    /**
+     * Number of beats in this channel file
+     * @return beat count
+     */
+    public int size() {
+        return this.starts.length;
     }
 
-    private boolean isTimeClose(final long clipPos, final long expectedPos) {
-        return clipPos >= expectedPos;
+    /**
+     * Start time of a beat
+     * @param beat index of the beat
+     * @return start time in microseconds
+     */
+    public long getStart(final int beat) {
+        return this.starts[beat];
     }
 
-    public void reset() {
-        LightUtils.allOff();
-        this.index = 0;
-    }
-
-    public void event() {
-        if (beats.get(index) instanceof long[] array) {
-            int holdDuration = (int) (array[1] - array[0]);
-            for (int channel : this.channels) {
-                LightUtils.blinkLED(channel, holdDuration);
-            }
-        } else {
-            for (int channel : this.channels) {
-                LightUtils.blinkLED(channel);
-            }
-        }
-
-        this.index++;
+    /**
+     * End time of a beat
+     * @param beat index of the beat
+     * @return end time in microseconds. Beats without an end time end DEFAULT_HOLD after they start
+     */
+    public long getEnd(final int beat) {
+        final long end = this.ends[beat];
+        return end == BeatFile.NO_END ? this.starts[beat] + DEFAULT_HOLD : end;
     }
 }
@@ -0,0 +1,184 @@
+package com.github.qpcrummer.beat;
+
+import com.github.qpcrummer.Main;
+import com.github.qpcrummer.directories.Directories;
+import com.github.qpcrummer.light.LightUtils;
+import com.github.qpcrummer.music.SongCatalog;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plays the light shows of Songs against a virtual clock instead of the audio, as fast as the CPU allows,
+ * and writes a trace of every change of the lights to celebrator/traces.
+ * Beats are read without the calibration offsets, so a trace only changes when the beat files do, and two can be diffed
+ */
+public final class ShowSimulator {
+    public static final Path traces = Directories.main.resolve("traces");
+    // Loads beats the same way the jukebox does, but is never started, so no lights are touched
+    private static final BeatManager loader = new BeatManager();
+
+    /**
+     * What a simulation found
+     * @param song Song path
+     * @param changes number of times the lights changed
+     * @param missingLights lights with beats that the output doesn't have, bit n is light n
+     * @param lateEvents events after the end of the Song
+     * @param droppedFlashes beats that turned on and off between two ticks, so they were never shown
+     */
+    public record Result(Path song, int changes, long missingLights, int lateEvents, int droppedFlashes) {
+        public boolean hasProblems() {
+            return this.missingLights != 0 || this.lateEvents != 0 || this.droppedFlashes != 0;
+        }
+    }
+
+    private ShowSimulator() {
+    }
+
+    /**
+     * Simulates Songs in parallel on a ForkJoinPool. This returns straight away and logs once every Song is done
+     * @param songs Song paths
+     * @param tick see simulate
+     */
+    public static void simulateInBackground(final Path[] songs, final long tick) {
+        final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        pool.submit(() -> simulateAll(Arrays.asList(songs), tick));
+        pool.shutdown();
+    }
+
+    /**
+     * Simulates Songs in parallel and waits for them. Every problem is logged
+     * @param songs Song paths
+     * @param tick see simulate
+     * @return a Result for every Song that could be simulated
+     */
+    public static List<Result> simulateAll(final List<Path> songs, final long tick) {
+        final long start = System.nanoTime();
+        final List<Result> results = songs.parallelStream()
+                .map(song -> {
+                    try {
+                        return simulate(song, tick, traceFile(song));
+                    } catch (IOException e) {
+                        Main.logger.warning("Failed to write trace for Song: " + song);
+                        return null;
+                    }
+                })
+                .filter(result -> result != null)
+                .toList();
+
+        int changes = 0;
+        for (final Result result : results) {
+            changes += result.changes();
+            if (result.hasProblems()) {
+                Main.logger.warning(describe(result));
+            }
+        }
+        Main.logger.info("Simulated " + results.size() + " Songs with " + changes + " light changes in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        return results;
+    }
+
+    /**
+     * Where the trace of a Song is written. Traces are named after the beat directory, which is unique to the Song
+     * @param song Song path
+     * @return trace path
+     */
+    public static Path traceFile(final Path song) {
+        return traces.resolve(Directories.getBeatPath(song).getFileName() + ".trace");
+    }
+
+    /**
+     * Steps a virtual clock through the beats of a Song. Like the beat tracker, every event that is due when the clock
+     * is read is applied as one write. Each line of the trace is a time in microseconds, then +n for every light
+     * that turned on and -n for every light that turned off
+     * @param song Song path
+     * @param tick how often the clock is read in microseconds, or 0 to read it exactly when every event is due
+     * @param traceFile file to write the trace to
+     * @return Result of the Song
+     */
+    public static Result simulate(final Path song, final long tick, final Path traceFile) throws IOException {
+        final BeatTimeline timeline = loader.loadBeats(song);
+        final int lightCount = LightUtils.getOutput().getLightCount();
+        final long outputLights = lightCount == Long.SIZE ? ~0L : (1L << lightCount) - 1;
+        final long length = SongCatalog.get(song).duration();
+
+        int changes = 0;
+        long missing = 0;
+        int late = 0;
+        int dropped = 0;
+        long shown = 0;
+        int cursor = 0;
+
+        Files.createDirectories(traceFile.getParent());
+        try (BufferedWriter writer = Files.newBufferedWriter(traceFile)) {
+            writer.write("# " + song.getFileName());
+            writer.newLine();
+            writer.write("# length " + length + " tick " + tick + " lights " + lightCount);
+            writer.newLine();
+
+            final StringBuilder line = new StringBuilder();
+            while (cursor < timeline.size()) {
+                // Jump straight to the next event, or the first tick at or after it
+                final long due = timeline.getTime(cursor);
+                final long clock = tick > 0 ? Math.ceilDiv(due, tick) * tick : due;
+                final int next = timeline.indexAfter(clock);
+                final long state = timeline.getState(next - 1);
+
+                long flashed = 0;
+                for (int event = cursor; event < next - 1; event++) {
+                    flashed |= timeline.getState(event);
+                }
+                dropped += Long.bitCount(flashed & ~shown & ~state);
+                missing |= (flashed | state) & ~outputLights;
+                if (length >= 0) {
+                    for (int event = next - 1; event >= cursor && timeline.getTime(event) > length; event--) {
+                        late++;
+                    }
+                }
+                cursor = next;
+
+                if (state == shown) {
+                    continue;
+                }
+                line.setLength(0);
+                line.append(clock);
+                appendLights(line, "+", state & ~shown);
+                appendLights(line, "-", shown & ~state);
+                writer.write(line.toString());
+                writer.newLine();
+                shown = state;
+                changes++;
+            }
+        }
+        return new Result(song, changes, missing, late, dropped);
+    }
+
+    private static void appendLights(final StringBuilder line, final String sign, long lights) {
+        while (lights != 0) {
+            line.append(' ').append(sign).append(Long.numberOfTrailingZeros(lights));
+            lights &= lights - 1;
+        }
+    }
+
+    private static String describe(final Result result) {
+        final StringBuilder text = new StringBuilder(result.song().getFileName().toString()).append(':');
+        if (result.missingLights() != 0) {
+            text.append(" beats for lights that don't exist:");
+            appendLights(text, "", result.missingLights());
+            text.append(';');
+        }
+        if (result.lateEvents() != 0) {
+            text.append(' ').append(result.lateEvents()).append(" events after the end;");
+        }
+        if (result.droppedFlashes() != 0) {
+            text.append(' ').append(result.droppedFlashes()).append(" beats too short to be shown;");
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,140 @@
+package com.github.qpcrummer.cli;
+
+import com.github.qpcrummer.Main;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A file of commands that runs on its own virtual Thread and queues its commands for the command loop.
+ * Each command is run before the next line is read, so times count from when the commands before them ran.
+ * Besides commands, a line can be one of these timing directives:
+ * <ul>
+ *     <li>wait &lt;seconds&gt;: waits before the next line</li>
+ *     <li>at &lt;m:ss | seconds&gt;: waits until that long after the script, or its latest repeat, started</li>
+ *     <li>repeat [times]: starts the script over, forever if times is left out</li>
+ * </ul>
+ * Blank lines and lines starting with # are skipped
+ */
+final class CommandScript {
+    private static final Set<Thread> running = ConcurrentHashMap.newKeySet();
+
+    private CommandScript() {
+    }
+
+    /**
+     * Reads a script and starts running it. Nothing is run if the file can't be read
+     * @param file script file
+     * @return false if the file couldn't be read
+     */
+    static boolean start(final Path file) {
+        final List<String> lines;
+        try {
+            lines = Files.readAllLines(file);
+        } catch (IOException e) {
+            Main.logger.warning("Failed to read script: " + file);
+            return false;
+        }
+
+        final Thread thread = Thread.ofVirtual().name("Script " + file.getFileName()).unstarted(() -> {
+            try {
+                run(file, lines);
+            } catch (InterruptedException e) {
+                Main.logger.info("Script cancelled: " + file);
+            } finally {
+                running.remove(Thread.currentThread());
+            }
+        });
+        running.add(thread);
+        thread.start();
+        return true;
+    }
+
+    /**
+     * Stops every running script. A command that was already queued still runs
+     * @return number of scripts stopped
+     */
+    static int cancelAll() {
+        int cancelled = 0;
+        for (final Thread thread : running) {
+            thread.interrupt();
+            cancelled++;
+        }
+        return cancelled;
+    }
+
+    private static void run(final Path file, final List<String> lines) throws InterruptedException {
+        // Repeats left after this pass, -1 to repeat forever, or null until the repeat line is first reached
+        Integer repeats = null;
+        while (true) {
+            final long start = System.nanoTime();
+            boolean repeat = false;
+            for (int number = 1; number <= lines.size() && !repeat; number++) {
+                final String line = lines.get(number - 1).strip();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+
+                final String[] words = line.split("\\s+");
+                try {
+                    switch (words[0].toLowerCase(Locale.ROOT)) {
+                        case "wait" -> TimeUnit.MICROSECONDS.sleep(parseTime(words[1]));
+                        case "at" -> {
+                            final long wait = parseTime(words[1]) - TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+                            if (wait > 0) {
+                                TimeUnit.MICROSECONDS.sleep(wait);
+                            }
+                        }
+                        case "repeat" -> {
+                            if (repeats == null) {
+                                repeats = words.length > 1 ? Integer.parseInt(words[1]) : -1;
+                            } else if (repeats > 0) {
+                                repeats--;
+                            }
+                            repeat = repeats != 0;
+                        }
+                        default -> runCommand(line);
+                    }
+                } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+                    Main.logger.warning("Bad directive on line " + number + " of " + file + ": " + line);
+                    return;
+                }
+            }
+            if (!repeat) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Queues a command and waits for the command loop to run it
+     */
+    private static void runCommand(final String line) throws InterruptedException {
+        try {
+            ConsoleReader.submit(line).get();
+        } catch (ExecutionException e) {
+            // Never completed exceptionally, commands log their own failures
+        }
+    }
+
+    /**
+     * Reads a time as seconds, or minutes and seconds such as 1:30
+     * @return time in microseconds
+     */
+    private static long parseTime(final String text) {
+        final int colon = text.indexOf(':');
+        final double seconds = colon < 0 ? Double.parseDouble(text)
+                : Integer.parseInt(text.substring(0, colon)) * 60 + Double.parseDouble(text.substring(colon + 1));
+        if (seconds < 0) {
+            throw new NumberFormatException(text);
+        }
+        return (long) (seconds * 1_000_000);
+    }
+}
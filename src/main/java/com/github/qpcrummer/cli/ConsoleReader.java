@@ -1,33 +1,147 @@
 package com.github.qpcrummer.cli;
 
 import com.github.qpcrummer.Main;
+import com.github.qpcrummer.beat.BeatDetector;
+import com.github.qpcrummer.beat.ShowSimulator;
 import com.github.qpcrummer.light.LightUtils;
+import com.github.qpcrummer.metrics.Metrics;
+import com.github.qpcrummer.music.Calibration;
 import com.github.qpcrummer.music.MusicUtils;
 import com.github.qpcrummer.music.WAVPlayer;
+import com.github.qpcrummer.network.LightBroadcaster;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.StringTokenizer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Reads commands from the console on one long-lived virtual Thread and runs them in order on another.
+ * Scripts started with run add their commands to the same queue
+ */
 public class ConsoleReader {
-    BufferedReader br;
+    private static final BlockingQueue<Command> commands = new LinkedBlockingQueue<>();
+    private static Thread loop;
+    private static Thread reader;
     StringTokenizer st;
 
-    public ConsoleReader() {
-        br = new BufferedReader(new InputStreamReader(System.in));
-        process(next());
+    /**
+     * A queued command line
+     * @param line command and its arguments
+     * @param done completed once the command has run
+     */
+    private record Command(String line, CompletableFuture<Void> done) {
     }
 
-    public String next() {
-        while (st == null || !st.hasMoreElements()) {
+    private ConsoleReader() {
+    }
+
+    /**
+     * Starts reading the console and running commands. Calling this again does nothing
+     */
+    public static synchronized void start() {
+        if (reader == null) {
+            startCommandLoop();
+            reader = Thread.ofVirtual().name("Console Reader").start(ConsoleReader::readConsole);
+        }
+    }
+
+    /**
+     * Starts running queued commands without reading the console, for commands that come from elsewhere.
+     * Calling this again does nothing
+     */
+    public static synchronized void startCommandLoop() {
+        if (loop == null) {
+            loop = Thread.ofVirtual().name("Command Loop").start(new ConsoleReader()::runCommands);
+        }
+    }
+
+    /**
+     * Waits for the command loop, which runs until the JVM is stopped.
+     * Virtual Threads don't keep the JVM alive, so the main Thread waits here in CLI mode
+     */
+    public static void await() throws InterruptedException {
+        final Thread thread;
+        synchronized (ConsoleReader.class) {
+            thread = loop;
+        }
+        if (thread != null) {
+            thread.join();
+        }
+    }
+
+    /**
+     * Queues a command line to run after the ones before it
+     * @param line command and its arguments
+     * @return completed once the command has run, even if it failed
+     */
+    public static CompletableFuture<Void> submit(final String line) {
+        final Command command = new Command(line, new CompletableFuture<>());
+        commands.add(command);
+        return command.done();
+    }
+
+    private static void readConsole() {
+        final BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
+        try {
+            String line;
+            while ((line = br.readLine()) != null) {
+                submit(line);
+            }
+        } catch (IOException e) {
+            Main.logger.warning("Failed to read console");
+        }
+    }
+
+    private void runCommands() {
+        while (true) {
+            final Command command;
             try {
-                st = new StringTokenizer(br.readLine());
+                command = commands.take();
+            } catch (InterruptedException e) {
+                return;
             }
-            catch (IOException e) {
-                Main.logger.warning("Failed to read console");
+            try {
+                execute(command.line());
+            } finally {
+                command.done().complete(null);
             }
         }
+    }
+
+    /**
+     * Runs one command line. A bad command is logged, so the loop keeps going
+     * @param line command and its arguments
+     */
+    void execute(final String line) {
+        st = new StringTokenizer(line);
+        if (!st.hasMoreTokens()) {
+            return;
+        }
+        try {
+            process(next());
+        } catch (NoSuchElementException e) {
+            Main.logger.warning("Missing argument; Type 'help' to see a list of commands");
+        } catch (NumberFormatException e) {
+            Main.logger.warning("Not a number: " + e.getMessage());
+        } catch (RuntimeException e) {
+            Main.logger.warning("Command failed: " + line + " (" + e + ")");
+        }
+    }
+
+    /**
+     * Gets the next argument of the command line
+     * @throws NoSuchElementException if there are no more arguments
+     */
+    public String next() {
         return st.nextToken();
     }
 
@@ -53,6 +167,7 @@ public class ConsoleReader {
                     - play: Resumes the current song
                     - mute: Sets volume to 0
                     - rewind: Restarts the current song
+                    - seek <seconds>: Jumps to a time in the current song
                     - shuffle: Randomizes the songs
                     - skip: Skips to the next song
                     - stop: Stops all music and resets
@@ -67,8 +182,28 @@ public class ConsoleReader {
                     - blink <channel>
                     - allon
                     - alloff
+                    - detect: Detects beats for songs without beat files
+                    - simulate [tick ms]: Runs every loaded show without audio and writes traces to celebrator/traces
+                    
+                              Calibration
+                    - tap: Tap along to the beat of the playing song
+                    - calibrate apply: Corrects the audio offset from the taps
+                    - calibrate audio <ms>: Sets how late the audio is heard
+                    - calibrate relay <channel> <ms>: Sets how late a relay switches
+                    - calibrate show: Shows the offsets
+                    - calibrate reset: Sets all offsets to 0
+                    
+                                Timing
+                    - stats show: Shows beat lateness, light writes, song loads, underruns and followers
+                    - stats export [file]: Writes the stats as CSV, to celebrator/stats.csv by default
+                    - stats reset: Clears the stats
+                    
+                                Scripts
+                    - run <file>: Runs the commands in a file, one per line
+                    - cancel: Stops every running script
+                      Scripts can also use: wait <seconds>, at <m:ss>, repeat [times]
                     """);
-            case "info" -> Main.logger.info("\nSong: " + MusicUtils.getTitle(WAVPlayer.getPath(WAVPlayer.getCurrentSong())) + "\nIndex: " + WAVPlayer.getCurrentSong() + "\nLength: " + MusicUtils.formatTime((int) WAVPlayer.getSongLength()) + "\nVolume: " + WAVPlayer.getVolume());
+            case "info" -> Main.logger.info("\nSong: " + MusicUtils.getTitle(WAVPlayer.getPath(WAVPlayer.getCurrentSong())) + "\nIndex: " + WAVPlayer.getCurrentSong() + "\nPosition: " + MusicUtils.formatTime((int) TimeUnit.MICROSECONDS.toSeconds(WAVPlayer.getCurrentPosition())) + "/" + MusicUtils.formatTime((int) WAVPlayer.getSongLength()) + "\nVolume: " + WAVPlayer.getVolume());
             case "loop" -> {
                 if (WAVPlayer.toggleLooping()) {
                     Main.logger.info("Looping song");
@@ -118,11 +253,106 @@ public class ConsoleReader {
                 LightUtils.allOff();
                 Main.logger.info("All Lights Off");
             }
+            case "detect" -> {
+                final Path[] songs = WAVPlayer.songPaths;
+                if (songs == null) {
+                    Main.logger.warning("Load a playlist first");
+                    return;
+                }
+                BeatDetector.detectMissing(songs);
+                Main.logger.info("Detecting beats for songs without beat files");
+            }
+            case "simulate" -> {
+                // The tick is optional, so only read it if it was typed on the same line
+                final long tick = st.hasMoreTokens() ? TimeUnit.MILLISECONDS.toMicros(nextLong()) : 0;
+                if (WAVPlayer.songPaths == null) {
+                    Main.logger.warning("Load a playlist first");
+                    return;
+                }
+                ShowSimulator.simulateInBackground(WAVPlayer.songPaths, tick);
+                Main.logger.info("Simulating the shows of " + WAVPlayer.songPaths.length + " Songs");
+            }
+            case "tap" -> {
+                final Long error = Calibration.tap();
+                if (error == null) {
+                    Main.logger.warning("No beat near that tap");
+                } else {
+                    Main.logger.info("Tap " + Calibration.getTapCount() + ": " + TimeUnit.MICROSECONDS.toMillis(error) + " ms off");
+                }
+            }
             // Multi-string functions
             case "blink" -> {
                 LightUtils.blinkLED(nextInt());
                 Main.logger.info("Light Blinks For 2 Seconds");
             }
+            case "seek" -> {
+                double seconds = nextDouble();
+                WAVPlayer.seek((long) (seconds * 1_000_000));
+                Main.logger.info("Seeking to " + MusicUtils.formatTime((int) seconds));
+            }
+            case "calibrate" -> {
+                switch (next()) {
+                    case "apply" -> {
+                        if (Calibration.applyTaps()) {
+                            Main.logger.info("Audio offset is now " + TimeUnit.MICROSECONDS.toMillis(Calibration.getAudioOffset()) + " ms");
+                        } else {
+                            Main.logger.warning("Tap along to a song first");
+                        }
+                    }
+                    case "audio" -> {
+                        Calibration.setAudioOffset(TimeUnit.MILLISECONDS.toMicros(nextLong()));
+                        Main.logger.info("Audio offset set");
+                    }
+                    case "relay" -> {
+                        final int channel = nextInt();
+                        Calibration.setRelayOffset(channel, TimeUnit.MILLISECONDS.toMicros(nextLong()));
+                        Main.logger.info("Relay offset set for channel " + channel);
+                    }
+                    case "show" -> {
+                        final StringBuilder output = new StringBuilder("Audio: " + TimeUnit.MICROSECONDS.toMillis(Calibration.getAudioOffset()) + " ms");
+                        for (int i = 0; i < LightUtils.getOutput().getLightCount(); i++) {
+                            output.append(Main.newLine).append("Relay ").append(i).append(": ")
+                                    .append(TimeUnit.MICROSECONDS.toMillis(Calibration.getRelayOffset(i))).append(" ms");
+                        }
+                        Main.logger.info(output.toString());
+                    }
+                    case "reset" -> {
+                        Calibration.reset();
+                        Main.logger.info("Offsets reset");
+                    }
+                    default -> Main.logger.warning("Use calibrate apply | audio | relay | show | reset");
+                }
+            }
+            case "stats" -> {
+                switch (next()) {
+                    case "show" -> {
+                        final List<String> report = new ArrayList<>(Metrics.report());
+                        if (LightBroadcaster.isRunning()) {
+                            report.add("Followers: " + LightBroadcaster.getFollowerCount());
+                        }
+                        Main.logger.info(Main.newLine + String.join(Main.newLine, report));
+                    }
+                    case "export" -> {
+                        // The file is optional, so only read it if it was typed on the same line
+                        final Path file = st.hasMoreTokens() ? Path.of(next()) : Metrics.defaultExport;
+                        if (Metrics.export(file)) {
+                            Main.logger.info("Stats written to " + file);
+                        }
+                    }
+                    case "reset" -> {
+                        Metrics.reset();
+                        Main.logger.info("Stats reset");
+                    }
+                    default -> Main.logger.warning("Use stats show | export | reset");
+                }
+            }
+            case "run" -> {
+                final Path file = Path.of(next());
+                if (CommandScript.start(file)) {
+                    Main.logger.info("Running script " + file);
+                }
+            }
+            case "cancel" -> Main.logger.info("Cancelled " + CommandScript.cancelAll() + " scripts");
             case "volume" -> {
                 WAVPlayer.calcVolume(nextDouble());
                 Main.logger.info("Setting new volume");
@@ -136,9 +366,10 @@ public class ConsoleReader {
                     }
                     case "playlist" -> {
                         int i = nextInt();
-                        MusicUtils.selectedPlaylists[i] = true;
-                        MusicUtils.initializeJukebox(MusicUtils.combinePlayLists());
-                        Main.logger.info("Selected " + MusicUtils.playlists.get(i).getFileName());
+                        final MusicUtils.Playlists playlists = MusicUtils.playlists;
+                        MusicUtils.setSelected(playlists, i, true);
+                        MusicUtils.loadSelectedPlaylists();
+                        Main.logger.info("Selected " + playlists.paths().get(i).getFileName() + ", scanning for Songs");
                     }
                 }
             }
@@ -154,9 +385,10 @@ public class ConsoleReader {
                     }
                     case "playlist" -> {
                         StringBuilder output = new StringBuilder();
-                        for (int i = 0; i < MusicUtils.playlists.size(); i++) {
+                        final List<Path> playlists = MusicUtils.playlists.paths();
+                        for (int i = 0; i < playlists.size(); i++) {
                             output.append(Main.newLine);
-                            output.append(i).append(". ").append(MusicUtils.playlists.get(i).getFileName());
+                            output.append(i).append(". ").append(playlists.get(i).getFileName());
                         }
                         Main.logger.info(output.toString());
                     }
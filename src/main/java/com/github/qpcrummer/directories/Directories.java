@@ -1,6 +1,6 @@
 package com.github.qpcrummer.directories;
 
-import com.github.qpcrummer.Main;
+import com.github.qpcrummer.music.MusicUtils;
 
 import java.io.IOException;
 import java.nio.file.Files;
@@ -12,9 +12,11 @@ public class Directories {
     private Directories() {
     }
 
-    public static final Path music = Paths.get("celebrator/music");
-    public static final Path main = Paths.get("celebrator");
-    public static final Path beats = Paths.get("celebrator/beats");
+    // -Dcelebrator.root moves everything somewhere else, such as for the benchmarks
+    public static final Path main = Paths.get(System.getProperty("celebrator.root", "celebrator"));
+    public static final Path music = main.resolve("music");
+    public static final Path beats = main.resolve("beats");
+    public static final Path cache = main.resolve("cache");
 
     /**
      * Creates all the directories needed for this application
@@ -23,7 +25,7 @@ public class Directories {
         try {
 
             if (Files.notExists(main)) {
-                Files.createDirectory(main);
+                Files.createDirectories(main);
             }
             if (Files.notExists(music)) {
                 Files.createDirectory(music);
@@ -31,27 +33,31 @@ public class Directories {
             if (Files.notExists(Directories.beats)) {
                 Files.createDirectory(Directories.beats);
             }
-        } catch(IOException ignored) {
-        }
-    }
-
-    public static void createBeatDirectory(final Path path) {
-        final Path songBeatPath = Directories.getBeatPath(path);
-        if (Files.notExists(songBeatPath)) {
-            try {
-                Files.createDirectory(songBeatPath);
-            } catch (IOException e) {
-                Main.logger.warning("Failed to create beats folder for Song: " + path);
+            if (Files.notExists(cache)) {
+                Files.createDirectory(cache);
             }
+        } catch(IOException ignored) {
         }
     }
 
+    /**
+     * Gets the beat directory of a Song. Songs are matched to their directory by their audio, so renaming one keeps its beats
+     * @param songInput Song path
+     * @return beat directory, which might not exist yet
+     */
     public static Path getBeatPath(Path songInput) {
-        return Path.of(Directories.beats + "/" + Directories.getFileNameWithoutExtension(songInput));
+        return SongCache.getBeatDirectory(songInput, Directories.getFileNameWithoutExtension(songInput));
     }
 
+    /**
+     * Gets the name of a file without the extension of a Song, so playlists with dots keep their whole name
+     * @param input file or directory path
+     * @return name without a playable extension
+     */
     public static String getFileNameWithoutExtension(Path input) {
         String inputString = input.toString().replace("\\", "/");
-        return inputString.substring(inputString.lastIndexOf("/") + 1).trim().replace(".wav", "");
+        String name = inputString.substring(inputString.lastIndexOf("/") + 1).trim();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 && MusicUtils.isPlayable(input) ? name.substring(0, dot) : name;
     }
 }
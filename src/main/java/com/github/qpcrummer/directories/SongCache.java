@@ -0,0 +1,308 @@
+package com.github.qpcrummer.directories;
+
+import com.github.qpcrummer.Main;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Everything derived from a Song, such as compiled beats, stored by a hash of the Song's audio
+ * instead of its file name. Renamed or moved Songs keep their data, and unchanged Songs are never processed twice
+ */
+public final class SongCache {
+    /**
+     * Bump this whenever the way data is derived from a Song changes, so old entries are ignored
+     */
+    public static final int ANALYSIS_VERSION = 1;
+    // Bytes hashed from the start, middle and end of a Song
+    private static final int SAMPLE_SIZE = 64 * 1024;
+    private static final Path bindingsFile = Directories.cache.resolve("beat-directories.properties");
+    // Appends come from many scanning threads at once, and a file is never appended to while it is compacted
+    private static final Object appendLock = new Object();
+    // Lines that are replaced by later ones allowed in a cache file before it is written again without them
+    private static final int MAX_STALE_LINES = 256;
+
+    private record Hashed(long size, long modified, String hash) {
+    }
+
+    private static final Path hashesFile = Directories.cache.resolve("song-hashes.properties");
+    private static final Map<Path, Hashed> hashes = new ConcurrentHashMap<>();
+    // Song hash -> the last Song path seen with it
+    private static final Map<String, Path> songsByHash = new ConcurrentHashMap<>();
+    private static volatile boolean hashesLoaded;
+    // Song hash -> name of the beat directory the Song's beats are in. Guarded by the class lock
+    private static Map<String, String> bindings;
+    // Beat directory name -> every hash bound to it, the reverse of bindings. Guarded by the class lock
+    private static Map<String, Set<String>> owners;
+
+    private SongCache() {
+    }
+
+    /**
+     * Hashes the size of a Song and three samples of its audio. Hashes are saved until the file changes,
+     * so unchanged Songs are only hashed once
+     * @param song Song path
+     * @return hex hash of the Song
+     */
+    public static String hash(final Path song) throws IOException {
+        loadHashes();
+        final Path key = song.toAbsolutePath().normalize();
+        final long size = Files.size(key);
+        final long modified = Files.getLastModifiedTime(key).toMillis();
+        final Hashed known = hashes.get(key);
+        if (known != null && known.size() == size && known.modified() == modified) {
+            return known.hash();
+        }
+
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update(ByteBuffer.allocate(Long.BYTES).putLong(0, size));
+
+        final ByteBuffer sample = ByteBuffer.allocate(SAMPLE_SIZE);
+        try (FileChannel channel = FileChannel.open(key, StandardOpenOption.READ)) {
+            for (final long offset : new long[]{0, Math.max(0, size / 2 - SAMPLE_SIZE / 2), Math.max(0, size - SAMPLE_SIZE)}) {
+                sample.clear();
+                while (sample.hasRemaining() && channel.read(sample, offset + sample.position()) > 0) {
+                    // Keep reading until the sample is full or the file ends
+                }
+                sample.flip();
+                digest.update(sample);
+            }
+        }
+
+        final String hash = HexFormat.of().formatHex(digest.digest(), 0, 16);
+        hashes.put(key, new Hashed(size, modified, hash));
+        songsByHash.put(hash, key);
+        append(hashesFile, key.toString(), size + " " + modified + " " + hash);
+        return hash;
+    }
+
+    /**
+     * Directory of the cached data of a Song, for the current ANALYSIS_VERSION
+     * @param song Song path
+     * @return existing cache directory
+     */
+    public static Path getEntry(final Path song) throws IOException {
+        return Files.createDirectories(Directories.cache.resolve(hash(song) + "-v" + ANALYSIS_VERSION));
+    }
+
+    /**
+     * Finds the beat directory of a Song. A Song keeps the directory it was first given, even if it is renamed or moved.
+     * A new Song gets the directory named after its file, unless another Song in the library already has it.
+     * The Song is hashed before taking the lock, so Songs are hashed in parallel
+     * @param song Song path
+     * @param name directory name based on the file name
+     * @return beat directory, which might not exist yet
+     */
+    static Path getBeatDirectory(final Path song, final String name) {
+        final String hash;
+        try {
+            hash = hash(song);
+        } catch (IOException e) {
+            return Directories.beats.resolve(name);
+        }
+        return bind(song.toAbsolutePath().normalize(), name, hash);
+    }
+
+    private static synchronized Path bind(final Path song, final String name, final String hash) {
+        if (bindings == null) {
+            loadBindings();
+        }
+        final String bound = bindings.get(hash);
+        if (bound != null && Files.isDirectory(Directories.beats.resolve(bound))) {
+            return Directories.beats.resolve(bound);
+        }
+
+        String directory = name;
+        if (isClaimed(name, hash, song)) {
+            directory = name + "_" + hash.substring(0, 8);
+        }
+        setBinding(hash, directory);
+        append(bindingsFile, hash, directory);
+        return Directories.beats.resolve(directory);
+    }
+
+    private static void setBinding(final String hash, final String directory) {
+        final String previous = bindings.put(hash, directory);
+        if (previous != null) {
+            final Set<String> previousOwners = owners.get(previous);
+            previousOwners.remove(hash);
+            if (previousOwners.isEmpty()) {
+                owners.remove(previous);
+            }
+        }
+        owners.computeIfAbsent(directory, key -> new HashSet<>()).add(hash);
+    }
+
+    /**
+     * Checks if another Song that is still in the library owns a beat directory.
+     * Directories of Songs that were edited or deleted are handed over instead
+     */
+    private static boolean isClaimed(final String directory, final String hash, final Path song) {
+        final Set<String> directoryOwners = owners.get(directory);
+        if (directoryOwners == null) {
+            return false;
+        }
+        for (final String other : directoryOwners) {
+            if (!other.equals(hash) && isInLibrary(other, song)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks if the last Song seen with a hash still exists unchanged
+     */
+    private static boolean isInLibrary(final String hash, final Path song) {
+        final Path path = songsByHash.get(hash);
+        if (path == null || path.equals(song)) {
+            return false;
+        }
+        final Hashed known = hashes.get(path);
+        try {
+            return known != null && known.hash().equals(hash) && Files.size(path) == known.size()
+                    && Files.getLastModifiedTime(path).toMillis() == known.modified();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Forgets the hashes and beat directories that were loaded, so the cache files are read again when they are next needed.
+     * The files themselves are left alone
+     */
+    public static synchronized void reset() {
+        hashes.clear();
+        songsByHash.clear();
+        hashesLoaded = false;
+        bindings = null;
+        owners = null;
+    }
+
+    private static void loadBindings() {
+        bindings = new HashMap<>();
+        owners = new HashMap<>();
+        final Properties properties = load(bindingsFile);
+        for (final String hash : properties.stringPropertyNames()) {
+            setBinding(hash, properties.getProperty(hash));
+        }
+    }
+
+    private static void loadHashes() {
+        if (!hashesLoaded) {
+            loadHashesFile();
+        }
+    }
+
+    private static synchronized void loadHashesFile() {
+        if (hashesLoaded) {
+            return;
+        }
+        final Properties properties = load(hashesFile);
+        for (final String path : properties.stringPropertyNames()) {
+            final String[] fields = properties.getProperty(path).split(" ");
+            if (fields.length != 3) {
+                continue;
+            }
+            try {
+                final Path key = Path.of(path);
+                hashes.put(key, new Hashed(Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[2]));
+                songsByHash.put(fields[2], key);
+            } catch (NumberFormatException | InvalidPathException e) {
+                // A damaged line only costs one hash
+            }
+        }
+        hashesLoaded = true;
+    }
+
+    /**
+     * Reads a cache file. Every re-hashed Song and moved binding adds a line, so once a file holds more lines that
+     * were replaced than are still used, it is written again with only the last line of each key
+     */
+    private static Properties load(final Path file) {
+        final int[] lines = new int[1];
+        final Properties properties = new Properties() {
+            @Override
+            public synchronized Object put(final Object key, final Object value) {
+                lines[0]++;
+                return super.put(key, value);
+            }
+        };
+        if (Files.isRegularFile(file)) {
+            try (InputStream in = Files.newInputStream(file)) {
+                properties.load(in);
+            } catch (IOException e) {
+                Main.logger.warning("Failed to read cache file: " + file);
+                return properties;
+            }
+        }
+
+        final int stale = lines[0] - properties.size();
+        if (stale > MAX_STALE_LINES && stale > properties.size()) {
+            save(properties, file);
+        }
+        return properties;
+    }
+
+    /**
+     * Writes a whole cache file. It is replaced in one move, so a crash leaves either the old or the new file
+     */
+    private static void save(final Map<?, ?> entries, final Path file) {
+        final Properties properties = new Properties();
+        properties.putAll(entries);
+        final Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        synchronized (appendLock) {
+            try {
+                try (OutputStream out = Files.newOutputStream(temporary)) {
+                    properties.store(out, null);
+                }
+                Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                Main.logger.warning("Failed to write cache file: " + file);
+            }
+        }
+    }
+
+    /**
+     * Adds one entry to the end of a cache file instead of writing them all again, so a first scan of a large library
+     * doesn't rewrite the file once per Song. When the file is loaded, later lines win, and load compacts it
+     */
+    private static void append(final Path file, final String key, final String value) {
+        final Properties entry = new Properties();
+        entry.setProperty(key, value);
+        final StringWriter line = new StringWriter();
+        try {
+            // store escapes the entry the same way load reads it, and starts with a date comment that is left out
+            entry.store(line, null);
+            final String text = line.toString();
+            synchronized (appendLock) {
+                Files.writeString(file, text.substring(text.indexOf('\n') + 1), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+        } catch (IOException e) {
+            Main.logger.warning("Failed to write cache file: " + file);
+        }
+    }
+}
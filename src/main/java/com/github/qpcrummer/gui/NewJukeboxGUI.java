@@ -1,12 +1,26 @@
 package com.github.qpcrummer.gui;
 
+import com.github.qpcrummer.directories.Directories;
+import com.github.qpcrummer.light.LightUtils;
+import com.github.qpcrummer.metrics.Metrics;
+import com.github.qpcrummer.music.Calibration;
 import com.github.qpcrummer.music.MusicUtils;
 import com.github.qpcrummer.music.WAVPlayer;
 import imgui.ImColor;
 import imgui.ImGui;
+import imgui.ImGuiListClipper;
+import imgui.callback.ImListClipperCallback;
 import imgui.flag.ImGuiCol;
 import imgui.flag.ImGuiWindowFlags;
 
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 public class NewJukeboxGUI {
@@ -14,10 +28,33 @@ public class NewJukeboxGUI {
     public static String title = "Christmas Celebrator";
     private static int selectedListItem = -1;
     private static float volume = 100.0f;
-    public static String[] titleList;
+    // The file name of each Song that has been shown, replaced by its title once titleReader has read it
+    private static final Map<Path, String> titles = new ConcurrentHashMap<>();
+    private static final ExecutorService titleReader = Executors.newSingleThreadExecutor(Thread.ofVirtual().name("Title Reader").factory());
+    private static Path[] listedSongs = new Path[0];
+    private static final ImListClipperCallback songRow = new ImListClipperCallback() {
+        @Override
+        public void accept(final int index) {
+            // The index keeps Songs with the same title apart without building a label every frame
+            ImGui.pushID(index);
+            if (ImGui.selectable(getTitle(listedSongs[index]), index == selectedListItem)) {
+                selectedListItem = index;
+                WAVPlayer.songOverride(index);
+            }
+            ImGui.popID();
+        }
+    };
     private static final float width = ImGui.getIO().getDisplaySizeX() - 15;
 
     private static boolean looping;
+    private static final int[] audioOffset = new int[1];
+    private static boolean calibrationEditing;
+    private static final int[] relayOffset = new int[1];
+    // Relay whose slider is being dragged, and its value until it is let go
+    private static int editedRelay = -1;
+    private static int relayDraft;
+    private static List<String> timingReport;
+    private static long timingReportTime;
     public static String cachedFormattedSongLength;
 
     public static void render() {
@@ -44,13 +81,9 @@ public class NewJukeboxGUI {
         // List of Strings
         GuiUtils.setFont(1.3F);
         if (ImGui.beginListBox("##", width, ImGui.getIO().getDisplaySizeY() * 0.75F)) {
-            for (int i = 0; i < titleList.length; i++) {
-                boolean isSelected = i == selectedListItem;
-                if (ImGui.selectable(titleList[i], isSelected)) {
-                    selectedListItem = i;
-                    WAVPlayer.songOverride(i);
-                }
-            }
+            // Only the rows that can be seen are drawn
+            listedSongs = WAVPlayer.songPaths;
+            ImGuiListClipper.forEach(listedSongs.length, songRow);
             ImGui.endListBox();
         }
        GuiUtils.clearFontSize();
@@ -109,19 +142,105 @@ public class NewJukeboxGUI {
 
         ImGui.endGroup();
 
+        renderCalibration();
+        renderTiming();
+
         ImGui.end();
     }
 
+    /**
+     * Offsets are applied when a slider is let go, since changing relay offsets reads the beats again
+     */
+    private static void renderCalibration() {
+        if (!ImGui.collapsingHeader("Calibration")) {
+            return;
+        }
+
+        if (!calibrationEditing) {
+            audioOffset[0] = (int) TimeUnit.MICROSECONDS.toMillis(Calibration.getAudioOffset());
+        }
+        ImGui.text("Audio Offset (ms)");
+        ImGui.sameLine();
+        ImGui.sliderInt("##AudioOffset", audioOffset, 0, 500);
+        calibrationEditing = ImGui.isItemActive();
+        if (ImGui.isItemDeactivatedAfterEdit()) {
+            Calibration.setAudioOffset(TimeUnit.MILLISECONDS.toMicros(audioOffset[0]));
+        }
+
+        if (ImGui.button("Tap")) {
+            Calibration.tap();
+        }
+        ImGui.sameLine();
+        if (ImGui.button("Apply Taps")) {
+            Calibration.applyTaps();
+        }
+        ImGui.sameLine();
+        ImGui.text(Calibration.getTapCount() + " taps");
+
+        for (int i = 0; i < LightUtils.getOutput().getLightCount(); i++) {
+            relayOffset[0] = i == editedRelay ? relayDraft : (int) TimeUnit.MICROSECONDS.toMillis(Calibration.getRelayOffset(i));
+            ImGui.pushID(i);
+            ImGui.text("Relay " + i + " (ms)");
+            ImGui.sameLine();
+            ImGui.sliderInt("##RelayOffset", relayOffset, 0, 100);
+            if (ImGui.isItemActive()) {
+                editedRelay = i;
+                relayDraft = relayOffset[0];
+            } else if (editedRelay == i) {
+                editedRelay = -1;
+            }
+            if (ImGui.isItemDeactivatedAfterEdit()) {
+                Calibration.setRelayOffset(i, TimeUnit.MILLISECONDS.toMicros(relayOffset[0]));
+            }
+            ImGui.popID();
+        }
+    }
+
+    /**
+     * The report walks every bucket, so it is only worked out again once a second
+     */
+    private static void renderTiming() {
+        if (!ImGui.collapsingHeader("Timing")) {
+            return;
+        }
+
+        final long now = System.nanoTime();
+        if (timingReport == null || now - timingReportTime > TimeUnit.SECONDS.toNanos(1)) {
+            timingReport = Metrics.report();
+            timingReportTime = now;
+        }
+        for (final String line : timingReport) {
+            ImGui.text(line);
+        }
+
+        if (ImGui.button("Export")) {
+            Metrics.export(Metrics.defaultExport);
+        }
+        ImGui.sameLine();
+        if (ImGui.button("Reset")) {
+            Metrics.reset();
+            timingReport = null;
+        }
+    }
+
     private static void setProgressBar() {
         float textWidth = GuiUtils.calcTextSize("99:99/99:99").x;
         float progressX = (width - textWidth) / 2;
         ImGui.pushStyleColor(ImGuiCol.PlotHistogram, ImColor.rgb(21, 66, 0));
 
-        long currentPosSec = TimeUnit.MICROSECONDS.toSeconds(WAVPlayer.getCurrentPositionLessAccurate());
+        long currentPosSec = TimeUnit.MICROSECONDS.toSeconds(WAVPlayer.getCurrentPosition());
         long songLength = WAVPlayer.getSongLength();
 
         ImGui.progressBar((float) currentPosSec /songLength, width, 25, "##");
         ImGui.popStyleColor(1);
+
+        // Seek to where the bar was clicked
+        if (ImGui.isItemClicked() && songLength > 0) {
+            float fraction = (ImGui.getMousePosX() - ImGui.getItemRectMinX()) / ImGui.getItemRectSizeX();
+            fraction = Math.max(0, Math.min(1, fraction));
+            WAVPlayer.seek((long) (fraction * TimeUnit.SECONDS.toMicros(songLength)));
+        }
+
         ImGui.sameLine(progressX);
         GuiUtils.setFont(1.3F);
 
@@ -133,10 +252,41 @@ public class NewJukeboxGUI {
         GuiUtils.clearFontSize();
     }
 
+    /**
+     * Gets the title of a Song for the list. Titles are read in the background,
+     * and the file name is shown until the title is ready
+     * @param song Song path
+     * @return title, or the file name for now
+     */
+    private static String getTitle(final Path song) {
+        final String title = titles.get(song);
+        if (title != null) {
+            return title;
+        }
+        final String fileName = Directories.getFileNameWithoutExtension(song).replace("_", " ");
+        titles.put(song, fileName);
+        // Only replaces the file name, so a title forgotten meanwhile is read again
+        titleReader.execute(() -> titles.replace(song, fileName, MusicUtils.getTitle(song)));
+        return fileName;
+    }
+
+    /**
+     * Forgets the titles of Songs that changed on disk, so they are read again when next shown
+     * @param songs changed files
+     */
+    public static void forgetTitles(final List<Path> songs) {
+        final Set<Path> changed = new HashSet<>();
+        for (final Path song : songs) {
+            changed.add(song.toAbsolutePath().normalize());
+        }
+        titles.keySet().removeIf(song -> changed.contains(song.toAbsolutePath().normalize()));
+    }
+
     public static void quit() {
         volume = 100.0f;
         selectedListItem = -1;
         title = "Christmas Celebrator";
+        titles.clear();
 
         shouldRender = false;
     }
@@ -20,9 +20,12 @@ public class NewPlaylistGUI {
         GuiUtils.setFont(1.3F);
         ImGui.text("Playlists");
 
-        for (int i = 0; i < MusicUtils.playlists.size(); i++) {
-            if (ImGui.checkbox(Directories.getFileNameWithoutExtension(MusicUtils.playlists.get(i)), MusicUtils.selectedPlaylists[i])) {
-                MusicUtils.selectedPlaylists[i] = !MusicUtils.selectedPlaylists[i];
+        // One snapshot per frame, since the LibraryWatcher can replace the Playlists at any time
+        final MusicUtils.Playlists playlists = MusicUtils.playlists;
+        for (int i = 0; i < playlists.paths().size(); i++) {
+            final boolean selected = playlists.selected()[i];
+            if (ImGui.checkbox(Directories.getFileNameWithoutExtension(playlists.paths().get(i)), selected)) {
+                MusicUtils.setSelected(playlists, i, !selected);
             }
         }
 
@@ -31,8 +34,8 @@ public class NewPlaylistGUI {
         ImGui.separator();
 
         if (ImGui.button("Confirm")) {
-            if (isOneSelected()) {
-                MusicUtils.initializeJukebox(MusicUtils.combinePlayLists());
+            if (MusicUtils.playlists.isAnySelected()) {
+                MusicUtils.loadSelectedPlaylists();
                 shouldRender = false;
                 NewJukeboxGUI.shouldRender = true;
             }
@@ -40,13 +43,4 @@ public class NewPlaylistGUI {
 
         ImGui.end();
     }
-
-    private static boolean isOneSelected() {
-        for (boolean bool : MusicUtils.selectedPlaylists) {
-            if (bool) {
-                return true;
-            }
-        }
-        return false;
-    }
 }
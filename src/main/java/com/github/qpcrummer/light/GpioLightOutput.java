@@ -0,0 +1,59 @@
+package com.github.qpcrummer.light;
+
+import com.diozero.devices.LED;
+
+/**
+ * Drives relays on the GPIO pins 0 to lightCount - 1
+ */
+public final class GpioLightOutput implements LightOutput {
+    private final LED[] leds;
+    private final boolean inverted;
+    private long written;
+
+    /**
+     * @param lightCount number of GPIO pins, starting at 0
+     * @param inverted true if a pin has to be low to turn its light on
+     */
+    public GpioLightOutput(final int lightCount, final boolean inverted) {
+        this.leds = new LED[lightCount];
+        this.inverted = inverted;
+        for (int i = 0; i < lightCount; i++) {
+            this.leds[i] = new LED(i);
+        }
+
+        // The pins start in an unknown state, so write every one of them once
+        this.written = ~0L;
+        write(0);
+    }
+
+    @Override
+    public int getLightCount() {
+        return this.leds.length;
+    }
+
+    /**
+     * Writes only the pins that differ from the last frame, in one pass
+     * @param frame lit lights, bit n is light n
+     */
+    @Override
+    public void write(final long frame) {
+        long changed = (frame ^ this.written) & mask();
+        while (changed != 0) {
+            final int light = Long.numberOfTrailingZeros(changed);
+            this.leds[light].setOn((((frame >>> light) & 1) != 0) != this.inverted);
+            changed &= changed - 1;
+        }
+        this.written = frame;
+    }
+
+    private long mask() {
+        return this.leds.length == Long.SIZE ? ~0L : (1L << this.leds.length) - 1;
+    }
+
+    @Override
+    public void close() {
+        for (LED led : this.leds) {
+            led.close();
+        }
+    }
+}
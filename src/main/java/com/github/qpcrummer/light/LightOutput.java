@@ -0,0 +1,21 @@
+package com.github.qpcrummer.light;
+
+/**
+ * Something that can show a frame of lights, where bit n of the frame is light n
+ */
+public interface LightOutput extends AutoCloseable {
+    /**
+     * Number of lights this output drives
+     * @return light count, at most 64
+     */
+    int getLightCount();
+
+    /**
+     * Shows a whole frame in one write
+     * @param frame lit lights, bit n is light n
+     */
+    void write(long frame);
+
+    @Override
+    void close();
+}
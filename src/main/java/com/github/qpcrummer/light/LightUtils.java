@@ -1,47 +1,169 @@
 package com.github.qpcrummer.light;
 
-import com.diozero.devices.LED;
+import com.github.qpcrummer.Main;
+import com.github.qpcrummer.metrics.Metrics;
 
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 public final class LightUtils {
-    private static final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
     private static final int TOTAL_CHANNELS = 12;
-    private static final LED[] leds = new LED[TOTAL_CHANNELS];
-    public static void readyLights() {
-        for (int i = 0; i < TOTAL_CHANNELS; i++) {
-            leds[i] = new LED(i);
+    private static volatile LightOutput output = new MockLightOutput(TOTAL_CHANNELS);
+    // Lights set by setLights, such as the beat tracker
+    private static long frame;
+    // Lights held on by blinkLED until their time in releaseAt
+    private static long held;
+    private static final long[] releaseAt = new long[Long.SIZE];
+    // Last state written to the output, readable without the lock
+    private static volatile long shown;
+    private static final Thread releaser = new Thread(LightUtils::releaseLoop, "Light Releaser");
+
+    static {
+        releaser.setDaemon(true);
+        releaser.start();
+    }
+
+    /**
+     * Sets up the relay board. If there is no GPIO, or mock is true, the lights are kept in memory instead
+     * @param mock true to never touch GPIO
+     */
+    public static void readyLights(final boolean mock) {
+        if (mock) {
+            setOutput(new MockLightOutput(TOTAL_CHANNELS));
+            return;
+        }
+
+        try {
+            // Inverted because our relay board is crong
+            setOutput(new GpioLightOutput(TOTAL_CHANNELS, true));
+        } catch (RuntimeException e) {
+            Main.logger.warning("GPIO is not available, using mock lights");
+            setOutput(new MockLightOutput(TOTAL_CHANNELS));
+        }
+    }
+
+    /**
+     * Replaces where frames are written to, and shows the current frame on it
+     * @param newOutput GPIO or mock output
+     */
+    public static synchronized void setOutput(final LightOutput newOutput) {
+        final LightOutput old = output;
+        output = newOutput;
+        write(frame | held);
+        if (old != newOutput) {
+            old.close();
         }
+    }
+
+    public static LightOutput getOutput() {
+        return output;
+    }
 
-        allOff();
+    /**
+     * Gets the lights that are on without waiting for the lock, so it can be read from anywhere
+     * @return lit lights, bit n is light n
+     */
+    public static long getLights() {
+        return shown;
     }
+
     public static void blinkLED(int channel) {
-        leds[channel].off();
-        executor.schedule(() -> leds[channel].on(), 200, TimeUnit.MILLISECONDS);
+        blinkLED(channel, 200_000);
     }
 
-    public static void blinkLED(int channel, long holdTime) {
-        leds[channel].off();
-        executor.schedule(() -> leds[channel].on(), holdTime, TimeUnit.MICROSECONDS);
+    /**
+     * Holds a light on for some time. Blinking a light that is already held keeps it on until the later of the two ends
+     * @param channel light to blink
+     * @param holdTime time in microseconds
+     */
+    public static synchronized void blinkLED(int channel, long holdTime) {
+        final long bit = 1L << channel;
+        final long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(holdTime);
+        if ((held & bit) == 0 || deadline - releaseAt[channel] > 0) {
+            releaseAt[channel] = deadline;
+        }
+        held |= bit;
+        write(frame | held);
+        LockSupport.unpark(releaser);
     }
 
     /**
-     * Inverted because our relay board is crong
+     * Turns off every held light whose time is up, then sleeps until the next one is due
      */
-    public static void allOff() {
-        for (LED led : leds) {
-            led.on();
+    private static void releaseLoop() {
+        while (true) {
+            long wait = Long.MAX_VALUE;
+            synchronized (LightUtils.class) {
+                final long now = System.nanoTime();
+                long expired = 0;
+                long remaining = held;
+                while (remaining != 0) {
+                    final int light = Long.numberOfTrailingZeros(remaining);
+                    final long left = releaseAt[light] - now;
+                    if (left <= 0) {
+                        expired |= 1L << light;
+                    } else {
+                        wait = Math.min(wait, left);
+                    }
+                    remaining &= remaining - 1;
+                }
+
+                if (expired != 0) {
+                    held &= ~expired;
+                    write(frame | held);
+                }
+            }
+
+            if (wait == Long.MAX_VALUE) {
+                LockSupport.park();
+            } else {
+                LockSupport.parkNanos(wait);
+            }
         }
     }
 
     /**
-     * Inverted because our relay board is crong
+     * Writes the lights to the output and records how long the write took
+     */
+    private static void write(final long state) {
+        final long start = System.nanoTime();
+        output.write(state);
+        Metrics.lightWrite.record(System.nanoTime() - start);
+        shown = state;
+    }
+
+    /**
+     * Shows a whole frame in one write. Lights held by blinkLED stay on until they are released
+     * @param state lit lights, bit n is light n
+     */
+    public static synchronized void setLights(final long state) {
+        frame = state;
+        write(frame | held);
+    }
+
+    /**
+     * Turns lights on without changing the others
+     * @param lights lights to turn on, bit n is light n
+     */
+    public static synchronized void turnOn(final long lights) {
+        setLights(frame | lights);
+    }
+
+    /**
+     * Turns lights off without changing the others
+     * @param lights lights to turn off, bit n is light n
      */
+    public static synchronized void turnOff(final long lights) {
+        setLights(frame & ~lights);
+    }
+
+    public static synchronized void allOff() {
+        held = 0;
+        setLights(0);
+    }
+
     public static void allOn() {
-        for (LED led : leds) {
-            led.off();
-        }
+        final int lights = output.getLightCount();
+        setLights(lights == Long.SIZE ? ~0L : (1L << lights) - 1);
     }
 }
@@ -0,0 +1,45 @@
+package com.github.qpcrummer.light;
+
+/**
+ * Keeps frames in memory instead of driving GPIO, for machines without a relay board
+ */
+public final class MockLightOutput implements LightOutput {
+    private final int lightCount;
+    private volatile long frame;
+    private volatile long writes;
+
+    public MockLightOutput(final int lightCount) {
+        this.lightCount = lightCount;
+    }
+
+    @Override
+    public int getLightCount() {
+        return this.lightCount;
+    }
+
+    @Override
+    public void write(final long frame) {
+        this.frame = frame;
+        this.writes++;
+    }
+
+    /**
+     * The last frame that was written
+     * @return lit lights, bit n is light n
+     */
+    public long getFrame() {
+        return this.frame;
+    }
+
+    /**
+     * Number of frames written so far
+     * @return write count
+     */
+    public long getWrites() {
+        return this.writes;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,156 @@
+package com.github.qpcrummer.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts values in log-linear buckets, like an HDR histogram. Values below 128 are counted exactly,
+ * and larger ones land in one of 64 buckets per power of two, so every bucket is within 1.6% of its values.
+ * Recording is a few shifts and atomic adds with no allocation or locking, so it is safe on the beat tracker and the audio feeder
+ */
+public final class Histogram {
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Values below this get a bucket each. The highest bit a positive long can have is 62
+    private static final int LINEAR = SUB_BUCKETS * 2;
+    private static final int BUCKETS = LINEAR + (Long.SIZE - 2 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final String name;
+    private final String unit;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param name name shown in reports
+     * @param unit unit of the recorded values, such as "us"
+     */
+    public Histogram(final String name, final String unit) {
+        this.name = name;
+        this.unit = unit;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    public String getUnit() {
+        return this.unit;
+    }
+
+    /**
+     * Counts a value. Negative values are counted as 0
+     * @param value value to record
+     */
+    public void record(final long value) {
+        final long clamped = Math.max(0, value);
+        this.counts.incrementAndGet(bucketOf(clamped));
+        this.total.incrementAndGet();
+        this.sum.addAndGet(clamped);
+        this.max.accumulateAndGet(clamped, Math::max);
+    }
+
+    /**
+     * Gets the number of recorded values
+     * @return count
+     */
+    public long count() {
+        return this.total.get();
+    }
+
+    /**
+     * Gets the largest recorded value
+     * @return max, or 0 if nothing was recorded
+     */
+    public long max() {
+        return this.max.get();
+    }
+
+    /**
+     * Gets the average of the recorded values
+     * @return mean, or 0 if nothing was recorded
+     */
+    public double mean() {
+        final long count = this.total.get();
+        return count == 0 ? 0 : (double) this.sum.get() / count;
+    }
+
+    /**
+     * Gets the value that a percentage of the recorded values are at or below.
+     * The answer is the top of the bucket the value is in, so it never reads better than it was
+     * @param percent 0 to 100
+     * @return percentile, or 0 if nothing was recorded
+     */
+    public long percentile(final double percent) {
+        final long count = this.total.get();
+        if (count == 0) {
+            return 0;
+        }
+        final long target = Math.max(1, (long) Math.ceil(count * Math.min(100, Math.max(0, percent)) / 100));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += this.counts.get(bucket);
+            if (seen >= target) {
+                return Math.min(upperBound(bucket), max());
+            }
+        }
+        return max();
+    }
+
+    /**
+     * Gets the count of one bucket
+     * @param bucket index from 0 to getBucketCount
+     * @return values counted in the bucket
+     */
+    public long getCount(final int bucket) {
+        return this.counts.get(bucket);
+    }
+
+    public static int getBucketCount() {
+        return BUCKETS;
+    }
+
+    /**
+     * Smallest value that lands in a bucket
+     */
+    public static long lowerBound(final int bucket) {
+        if (bucket < LINEAR) {
+            return bucket;
+        }
+        final int shift = (bucket - LINEAR) / SUB_BUCKETS + 1;
+        final long top = (bucket - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+        return top << shift;
+    }
+
+    /**
+     * Largest value that lands in a bucket
+     */
+    public static long upperBound(final int bucket) {
+        if (bucket == BUCKETS - 1) {
+            return Long.MAX_VALUE;
+        }
+        return lowerBound(bucket + 1) - 1;
+    }
+
+    private static int bucketOf(final long value) {
+        if (value < LINEAR) {
+            return (int) value;
+        }
+        // Keep the top 7 bits of the value. The highest one is always set, the other 6 pick the sub bucket
+        final int shift = Long.SIZE - 1 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return LINEAR + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * Forgets every recorded value
+     */
+    public void reset() {
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            this.counts.set(bucket, 0);
+        }
+        this.total.set(0);
+        this.sum.set(0);
+        this.max.set(0);
+    }
+}
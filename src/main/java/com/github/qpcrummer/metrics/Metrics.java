@@ -0,0 +1,102 @@
+package com.github.qpcrummer.metrics;
+
+import com.github.qpcrummer.Main;
+import com.github.qpcrummer.directories.Directories;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timing of the show while it runs: how late beats fire, how long the relays take to write,
+ * how long Songs take to load and how often the audio line runs dry
+ */
+public final class Metrics {
+    /**
+     * How long after its time each beat event was applied, in microseconds
+     */
+    public static final Histogram beatLateness = new Histogram("Beat lateness", "us");
+    /**
+     * How long each write of the light state took, in nanoseconds
+     */
+    public static final Histogram lightWrite = new Histogram("Light write", "ns");
+    /**
+     * How long a Song took to open and read the beats of, in microseconds
+     */
+    public static final Histogram songLoad = new Histogram("Song load", "us");
+    private static final List<Histogram> histograms = List.of(beatLateness, lightWrite, songLoad);
+    private static final LongAdder underruns = new LongAdder();
+    public static final Path defaultExport = Directories.main.resolve("stats.csv");
+
+    private Metrics() {
+    }
+
+    /**
+     * Counts a time the audio line played everything it was given before more was written
+     */
+    public static void underrun() {
+        underruns.increment();
+    }
+
+    public static long getUnderruns() {
+        return underruns.sum();
+    }
+
+    /**
+     * Summarizes every histogram and counter, one per line
+     * @return lines of the report
+     */
+    public static List<String> report() {
+        final List<String> lines = new ArrayList<>();
+        for (final Histogram histogram : histograms) {
+            lines.add(String.format(Locale.ROOT, "%s: n=%d mean=%.1f p50=%d p99=%d p99.9=%d max=%d %s",
+                    histogram.getName(), histogram.count(), histogram.mean(), histogram.percentile(50),
+                    histogram.percentile(99), histogram.percentile(99.9), histogram.max(), histogram.getUnit()));
+        }
+        lines.add("Audio underruns: " + getUnderruns());
+        return lines;
+    }
+
+    /**
+     * Writes the report and every non empty bucket as CSV, so the distributions can be plotted
+     * @param file file to write
+     * @return false if the file couldn't be written
+     */
+    public static boolean export(final Path file) {
+        try (BufferedWriter writer = Files.newBufferedWriter(file)) {
+            writer.write("metric,lower,upper,count");
+            writer.newLine();
+            for (final Histogram histogram : histograms) {
+                final String name = histogram.getName() + " (" + histogram.getUnit() + ")";
+                for (int bucket = 0; bucket < Histogram.getBucketCount(); bucket++) {
+                    final long count = histogram.getCount(bucket);
+                    if (count != 0) {
+                        writer.write(name + "," + Histogram.lowerBound(bucket) + "," + Histogram.upperBound(bucket) + "," + count);
+                        writer.newLine();
+                    }
+                }
+            }
+            writer.write("Audio underruns,,," + getUnderruns());
+            writer.newLine();
+            return true;
+        } catch (IOException e) {
+            Main.logger.warning("Failed to export stats to " + file);
+            return false;
+        }
+    }
+
+    /**
+     * Forgets everything recorded so far
+     */
+    public static void reset() {
+        for (final Histogram histogram : histograms) {
+            histogram.reset();
+        }
+        underruns.reset();
+    }
+}
@@ -0,0 +1,425 @@
+package com.github.qpcrummer.music;
+
+import com.github.qpcrummer.Main;
+import com.github.qpcrummer.metrics.Metrics;
+
+import javax.sound.sampled.*;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Streams an AudioTrack into a SourceDataLine a chunk at a time, so memory stays flat no matter how long the song is
+ */
+final class AudioEngine {
+    private static final int BUFFER_SIZE = 8192;
+    private static final int LINE_BUFFERS = 4;
+    static final int PRIMED_BUFFERS = 4;
+
+    // The feeder's buffer, and the primed buffers of the playing song and of the next one
+    private final BufferPool pool = new BufferPool(1 + 2 * PRIMED_BUFFERS, BUFFER_SIZE);
+    private final ReentrantLock feedLock = new ReentrantLock(true);
+    private final AtomicReference<AudioTrack> next = new AtomicReference<>();
+    private final Runnable onEnd;
+    private final Consumer<AudioTrack> onChange;
+    private final PlaybackClock clock = new PlaybackClock();
+    private SourceDataLine line;
+    private FloatControl gainControl;
+    private float gain;
+    // The song being read by the feeder. During a gapless change this is already the next song
+    private volatile AudioTrack track;
+    // The song that can be heard
+    private volatile AudioTrack audible;
+    private volatile Thread feeder;
+    private volatile boolean running;
+    private volatile boolean paused;
+    private volatile boolean looping;
+    private volatile long pendingBoundary = -1;
+    private long framesWritten;
+    // False until the first write after the line was started or moved, since the line is expected to be empty then
+    private boolean fed;
+
+    /**
+     * @param onEnd Runs on the feeder thread once a song has played out and there is no next song queued
+     * @param onChange Runs on the feeder thread once the queued next song can be heard, or a looping song starts over
+     */
+    AudioEngine(final Runnable onEnd, final Consumer<AudioTrack> onChange) {
+        this.onEnd = onEnd;
+        this.onChange = onChange;
+    }
+
+    /**
+     * Starts streaming a song. Any song that is already playing is stopped first
+     * @param track Song to play
+     */
+    void play(final AudioTrack track) throws LineUnavailableException {
+        stop();
+        openLine(track.format);
+
+        this.track = track;
+        this.audible = track;
+        this.framesWritten = this.line.getLongFramePosition();
+        this.fed = false;
+        this.clock.set(this.line, this.framesWritten, track.getFramePosition(), track.format.getFrameRate());
+        this.pendingBoundary = -1;
+        this.paused = false;
+        this.running = true;
+
+        this.line.start();
+        this.feeder = new Thread(this::feed, "Audio Feeder");
+        this.feeder.setDaemon(true);
+        this.feeder.setPriority(Thread.MAX_PRIORITY);
+        this.feeder.start();
+    }
+
+    /**
+     * Reuses the line if the format is the same, otherwise a new line is opened
+     * @param format AudioFormat of the next song
+     */
+    private void openLine(final AudioFormat format) throws LineUnavailableException {
+        if (this.line != null && this.line.isOpen() && this.line.getFormat().matches(format)) {
+            return;
+        }
+        closeLine();
+
+        this.line = AudioSystem.getSourceDataLine(format);
+        final int frameSize = format.getFrameSize();
+        this.line.open(format, (BUFFER_SIZE - BUFFER_SIZE % frameSize) * LINE_BUFFERS);
+
+        if (this.line.isControlSupported(FloatControl.Type.MASTER_GAIN)) {
+            this.gainControl = (FloatControl) this.line.getControl(FloatControl.Type.MASTER_GAIN);
+            this.gainControl.setValue(clampGain(this.gain));
+        } else {
+            this.gainControl = null;
+        }
+    }
+
+    /**
+     * Reads chunks from the song and writes them into the line until the song ends or the engine is stopped
+     */
+    private void feed() {
+        final byte[] buffer = this.pool.acquire();
+        boolean ended = false;
+        try {
+            while (this.running) {
+                while (this.paused && this.running) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+                }
+
+                this.feedLock.lock();
+                try {
+                    if (!this.running) {
+                        break;
+                    }
+                    final int read = this.track.read(buffer);
+                    if (read < 0) {
+                        if (this.looping) {
+                            this.track.seek(0);
+                            this.pendingBoundary = this.framesWritten;
+                            this.clock.setPending(this.line, this.framesWritten, this.track.format.getFrameRate());
+                            continue;
+                        }
+                        if (!changeToNext()) {
+                            ended = true;
+                            break;
+                        }
+                        continue;
+                    }
+                    if (this.fed && this.line.isRunning() && this.framesWritten - this.line.getLongFramePosition() <= 0) {
+                        // Everything written so far has been played, so the speakers went quiet before this write
+                        Metrics.underrun();
+                    }
+                    this.line.write(buffer, 0, read);
+                    this.framesWritten += read / this.track.format.getFrameSize();
+                    this.fed = true;
+                    checkBoundary();
+                } finally {
+                    this.feedLock.unlock();
+                }
+            }
+        } catch (IOException e) {
+            Main.logger.warning("Failed to stream Song: " + this.track.path);
+            ended = true;
+        } finally {
+            this.pool.release(buffer);
+        }
+
+        if (ended && this.running) {
+            this.line.drain();
+            if (this.running) {
+                this.running = false;
+                this.onEnd.run();
+            }
+        }
+    }
+
+    /**
+     * Continues with the queued next song straight after the last frame of the current one.
+     * If the formats match, the next song is written into the same line so there is no gap
+     * @return false if there is no next song
+     */
+    private boolean changeToNext() throws IOException {
+        // Only one change can be waiting for the line at a time. Let a seek or stop have the lock meanwhile
+        while (this.pendingBoundary >= 0 && this.running) {
+            if (this.feedLock.hasQueuedThreads()) {
+                return true;
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+            checkBoundary();
+        }
+
+        final AudioTrack nextTrack = this.next.getAndSet(null);
+        if (nextTrack == null || !this.running) {
+            if (nextTrack != null) {
+                nextTrack.close();
+            }
+            return false;
+        }
+
+        final AudioTrack finished = this.track;
+        this.track = nextTrack;
+        if (this.line.getFormat().matches(nextTrack.format)) {
+            this.pendingBoundary = this.framesWritten;
+            this.clock.setPending(this.line, this.framesWritten, nextTrack.format.getFrameRate());
+            return true;
+        }
+
+        // Different format; the old line has to play out before a new one can be opened
+        this.line.drain();
+        try {
+            openLine(nextTrack.format);
+        } catch (LineUnavailableException e) {
+            Main.logger.warning("AudioSystem failed to start!");
+            this.track = finished;
+            nextTrack.close();
+            return false;
+        }
+        this.line.start();
+        this.framesWritten = this.line.getLongFramePosition();
+        this.fed = false;
+        this.pendingBoundary = this.framesWritten;
+        checkBoundary();
+        return true;
+    }
+
+    /**
+     * Makes the next song (or the restart of a looping song) audible once the line has played past its first frame
+     */
+    private void checkBoundary() {
+        final long boundary = this.pendingBoundary;
+        if (boundary >= 0 && this.line.getLongFramePosition() >= boundary) {
+            promote(boundary);
+        }
+    }
+
+    private void promote(final long boundary) {
+        final AudioTrack finished = this.audible;
+        this.clock.set(this.line, boundary, 0, this.track.format.getFrameRate());
+        this.audible = this.track;
+        this.pendingBoundary = -1;
+
+        if (finished != this.track) {
+            closeTrack(finished);
+        }
+        this.onChange.accept(this.track);
+    }
+
+    /**
+     * Queues the song to play once the current one ends. The song should already be primed
+     * @param track next song, replacing any song queued before
+     */
+    void setNext(final AudioTrack track) {
+        final AudioTrack replaced = this.next.getAndSet(track);
+        if (replaced != null && replaced != track) {
+            try {
+                replaced.close();
+            } catch (IOException e) {
+                Main.logger.warning("Failed to close Song: " + replaced.path);
+            }
+        }
+    }
+
+    /**
+     * Removes the queued next song without closing it
+     * @return the queued song, or null if none was queued
+     */
+    AudioTrack takeNext() {
+        return this.next.getAndSet(null);
+    }
+
+    /**
+     * Decodes the first chunks of a song with buffers from the engine's pool
+     * @param track song to prime
+     */
+    void prime(final AudioTrack track) throws IOException {
+        track.prime(this.pool, PRIMED_BUFFERS);
+    }
+
+    /**
+     * Pauses playback, leaving the unplayed audio in the line
+     */
+    void pause() {
+        if (this.line != null) {
+            this.paused = true;
+            this.line.stop();
+        }
+    }
+
+    /**
+     * Continues playback from where it was paused
+     */
+    void resume() {
+        if (this.line != null && this.running) {
+            this.paused = false;
+            this.line.start();
+        }
+    }
+
+    /**
+     * Moves the song to a frame, dropping everything that was already queued
+     * @param frame frame to play next
+     */
+    void seek(final long frame) {
+        if (!this.running) {
+            return;
+        }
+
+        // Flushing wakes the feeder if it is blocked writing to a full line
+        while (true) {
+            this.line.flush();
+            try {
+                if (this.feedLock.tryLock(5, TimeUnit.MILLISECONDS)) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        try {
+            this.line.flush();
+            // The user is seeking in the song they hear, so finish any change in progress first
+            if (this.pendingBoundary >= 0) {
+                promote(this.pendingBoundary);
+            }
+            this.track.seek(frame);
+            this.framesWritten = this.line.getLongFramePosition();
+            this.fed = false;
+            this.clock.set(this.line, this.framesWritten, this.track.getFramePosition(), this.track.format.getFrameRate());
+        } catch (IOException e) {
+            Main.logger.warning("Failed to seek Song: " + this.track.path);
+        } finally {
+            this.feedLock.unlock();
+        }
+    }
+
+    /**
+     * Moves the song to a time
+     * @param microseconds time to play next
+     */
+    void seekMicroseconds(final long microseconds) {
+        final AudioTrack current = this.audible;
+        if (current != null) {
+            seek((long) (microseconds / 1_000_000.0 * current.format.getFrameRate()));
+        }
+    }
+
+    /**
+     * Stops the feeder and closes the song, but keeps the line open for the next song
+     */
+    void stop() {
+        this.running = false;
+        final Thread thread = this.feeder;
+        if (this.line != null) {
+            this.line.stop();
+            this.line.flush();
+        }
+        if (thread != null && thread != Thread.currentThread()) {
+            try {
+                // Keep flushing in case the feeder started another write to the stopped line
+                while (thread.isAlive()) {
+                    this.line.flush();
+                    thread.join(5);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        this.feeder = null;
+
+        closeTrack(this.track);
+        if (this.audible != this.track) {
+            closeTrack(this.audible);
+        }
+        this.track = null;
+        this.audible = null;
+        this.pendingBoundary = -1;
+        this.clock.clear();
+        this.paused = false;
+    }
+
+    private void closeTrack(final AudioTrack current) {
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                Main.logger.warning("Failed to close Song: " + current.path);
+            }
+        }
+    }
+
+    /**
+     * Stops playback and releases the audio line and the queued next song
+     */
+    void close() {
+        stop();
+        closeTrack(takeNext());
+        closeLine();
+    }
+
+    private void closeLine() {
+        if (this.line != null) {
+            this.line.close();
+            this.line = null;
+            this.gainControl = null;
+        }
+    }
+
+    PlaybackClock getClock() {
+        return this.clock;
+    }
+
+    boolean isLoaded() {
+        return this.track != null;
+    }
+
+    void setLooping(final boolean looping) {
+        this.looping = looping;
+    }
+
+    /**
+     * Sets the master gain. This is remembered for every line opened afterward
+     * @param gain gain in decibels
+     */
+    void setGain(final float gain) {
+        this.gain = gain;
+        if (this.gainControl != null) {
+            this.gainControl.setValue(clampGain(gain));
+        }
+    }
+
+    float getGain() {
+        return this.gain;
+    }
+
+    private float clampGain(final float value) {
+        if (this.gainControl == null) {
+            return value;
+        }
+        return Math.max(this.gainControl.getMinimum(), Math.min(this.gainControl.getMaximum(), value));
+    }
+}
@@ -0,0 +1,221 @@
+package com.github.qpcrummer.music;
+
+import javax.sound.sampled.*;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+
+/**
+ * A song that is decoded a chunk at a time instead of being loaded into memory.
+ * WAV files the line can play as they are are memory mapped, so reading is a copy out of the page cache
+ * and seeking only moves the position
+ */
+final class AudioTrack implements Closeable {
+    final Path path;
+    final AudioFormat format;
+    final long frameLength;
+    private final ArrayDeque<byte[]> primed = new ArrayDeque<>();
+    private final ArrayDeque<Integer> primedLengths = new ArrayDeque<>();
+    private BufferPool primePool;
+    // The data chunk of a mapped WAV file, or null if the song is decoded from stream
+    private final MappedByteBuffer data;
+    private AudioInputStream stream;
+    private long streamPosition;
+    private long framePosition;
+
+    private AudioTrack(final Path path) throws UnsupportedAudioFileException, IOException {
+        this.path = path;
+        this.data = null;
+        this.stream = openStream(path);
+        this.format = this.stream.getFormat();
+        this.frameLength = this.stream.getFrameLength();
+    }
+
+    private AudioTrack(final Path path, final AudioFormat format, final MappedByteBuffer data) {
+        this.path = path;
+        this.data = data;
+        this.format = format;
+        this.frameLength = data.capacity() / format.getFrameSize();
+    }
+
+    /**
+     * Opens a song for streaming. Uncompressed WAV files are mapped instead of decoded
+     * @param path Song path
+     * @return AudioTrack positioned at the first frame
+     */
+    static AudioTrack open(final Path path) throws UnsupportedAudioFileException, IOException {
+        if (!FlacDecoder.isFlac(path)) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                final WaveFile wave = WaveFile.read(channel);
+                final AudioFormat format = wave == null ? null : wave.getAudioFormat();
+                if (format != null && AudioSystem.isLineSupported(new DataLine.Info(SourceDataLine.class, format))) {
+                    MappedByteBuffer data = null;
+                    try {
+                        data = wave.map(channel);
+                    } catch (IOException e) {
+                        // Some file systems can't be mapped, or there is no address space left, so it is streamed instead
+                    }
+                    if (data != null) {
+                        return new AudioTrack(path, format, data);
+                    }
+                }
+            }
+        }
+        return new AudioTrack(path);
+    }
+
+    private static AudioInputStream openStream(final Path path) throws UnsupportedAudioFileException, IOException {
+        final AudioInputStream source = MusicUtils.openAudio(path, false);
+        if (AudioSystem.isLineSupported(new DataLine.Info(SourceDataLine.class, source.getFormat()))) {
+            return source;
+        }
+
+        // Convert anything the line can't play (ULAW, float, 24 bit, ...) to 16-bit signed PCM
+        source.close();
+        return MusicUtils.openAudio(path, true);
+    }
+
+    /**
+     * Decodes the first chunks ahead of time so the song can start without touching the disk
+     * @param pool pool to borrow the buffers from
+     * @param chunks number of buffers to fill
+     */
+    void prime(final BufferPool pool, final int chunks) throws IOException {
+        this.primePool = pool;
+        for (int i = 0; i < chunks; i++) {
+            final byte[] buffer = pool.acquire();
+            final int read = readStream(buffer);
+            if (read < 0) {
+                pool.release(buffer);
+                return;
+            }
+            this.primed.add(buffer);
+            this.primedLengths.add(read);
+        }
+    }
+
+    /**
+     * Reads the next chunk of whole frames
+     * @param buffer buffer to fill
+     * @return number of bytes read, or -1 at the end of the song
+     */
+    int read(final byte[] buffer) throws IOException {
+        final byte[] chunk = this.primed.poll();
+        if (chunk != null) {
+            final int length = this.primedLengths.poll();
+            System.arraycopy(chunk, 0, buffer, 0, length);
+            this.primePool.release(chunk);
+            this.framePosition += length / this.format.getFrameSize();
+            return length;
+        }
+
+        final int read = readStream(buffer);
+        if (read > 0) {
+            this.framePosition += read / this.format.getFrameSize();
+        }
+        return read;
+    }
+
+    private int readStream(final byte[] buffer) throws IOException {
+        final int frameSize = this.format.getFrameSize();
+        final int length = buffer.length - (buffer.length % frameSize);
+        if (this.data != null) {
+            final int count = Math.min(length, this.data.remaining());
+            if (count == 0) {
+                return -1;
+            }
+            try {
+                this.data.get(buffer, 0, count);
+            } catch (InternalError e) {
+                // The JVM turns the SIGBUS of reading a mapped file that was cut short into an InternalError
+                throw new IOException("Song was truncated while playing: " + this.path, e);
+            }
+            this.streamPosition += count / frameSize;
+            return count;
+        }
+
+        int total = 0;
+        while (total < length) {
+            final int read = this.stream.read(buffer, total, length - total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        if (total == 0) {
+            return -1;
+        }
+        this.streamPosition += total / frameSize;
+        return total;
+    }
+
+    /**
+     * Moves the stream to a frame. Seeking backwards reopens the file, unless it is mapped
+     * @param frame frame to continue reading from
+     */
+    void seek(final long frame) throws IOException {
+        releasePrimed();
+        if (this.data != null) {
+            this.streamPosition = Math.max(0, Math.min(frame, this.frameLength));
+            this.framePosition = this.streamPosition;
+            this.data.position((int) (this.streamPosition * this.format.getFrameSize()));
+            return;
+        }
+        if (frame < this.streamPosition) {
+            this.stream.close();
+            try {
+                this.stream = openStream(this.path);
+            } catch (UnsupportedAudioFileException e) {
+                throw new IOException(e);
+            }
+            this.streamPosition = 0;
+        }
+
+        final int frameSize = this.format.getFrameSize();
+        long remaining = (frame - this.streamPosition) * frameSize;
+        while (remaining > 0) {
+            final long skipped = this.stream.skip(remaining);
+            if (skipped <= 0) {
+                break;
+            }
+            remaining -= skipped;
+        }
+        this.streamPosition = frame - remaining / frameSize;
+        this.framePosition = this.streamPosition;
+    }
+
+    private void releasePrimed() {
+        byte[] chunk;
+        while ((chunk = this.primed.poll()) != null) {
+            this.primePool.release(chunk);
+        }
+        this.primedLengths.clear();
+    }
+
+    long getFramePosition() {
+        return this.framePosition;
+    }
+
+    /**
+     * Song length in microseconds
+     * @return length as a long
+     */
+    long getMicrosecondLength() {
+        return (long) (this.frameLength * 1_000_000.0 / this.format.getFrameRate());
+    }
+
+    /**
+     * Closes the stream. A mapping can't be closed, and is unmapped once it is garbage collected
+     */
+    @Override
+    public void close() throws IOException {
+        releasePrimed();
+        if (this.stream != null) {
+            this.stream.close();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.github.qpcrummer.music;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A small pool of equally sized byte buffers that are reused for every song
+ */
+final class BufferPool {
+    private final ArrayBlockingQueue<byte[]> free;
+    private final int bufferSize;
+
+    BufferPool(final int buffers, final int bufferSize) {
+        this.free = new ArrayBlockingQueue<>(buffers);
+        this.bufferSize = bufferSize;
+        for (int i = 0; i < buffers; i++) {
+            this.free.add(new byte[bufferSize]);
+        }
+    }
+
+    /**
+     * Takes a buffer from the pool. If the pool is empty, a new buffer is made
+     * @return buffer of bufferSize bytes
+     */
+    byte[] acquire() {
+        final byte[] buffer = this.free.poll();
+        return buffer != null ? buffer : new byte[this.bufferSize];
+    }
+
+    /**
+     * Gives a buffer back to the pool. Buffers that don't fit are left for the GC
+     * @param buffer buffer received from acquire()
+     */
+    void release(final byte[] buffer) {
+        if (buffer.length == this.bufferSize) {
+            this.free.offer(buffer);
+        }
+    }
+}
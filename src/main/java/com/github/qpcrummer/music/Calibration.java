@@ -0,0 +1,182 @@
+package com.github.qpcrummer.music;
+
+import com.github.qpcrummer.Main;
+import com.github.qpcrummer.beat.BeatTimeline;
+import com.github.qpcrummer.directories.Directories;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Offsets that line the lights up with what the audience hears.
+ * The audio offset is how late sound leaves the speakers, and each relay offset is how late a light switches.
+ * They are saved in celebrator/calibration.properties
+ */
+public final class Calibration {
+    private static final Path calibrationFile = Directories.main.resolve("calibration.properties");
+    // Taps further than this from a beat are ignored, in microseconds
+    private static final long MAX_TAP_ERROR = 300_000;
+    private static long audioOffset;
+    private static final long[] relayOffsets = new long[BeatTimeline.MAX_LIGHTS];
+    private static final List<Long> taps = new ArrayList<>();
+
+    private Calibration() {
+    }
+
+    /**
+     * Reads the saved offsets and applies them
+     */
+    public static synchronized void load() {
+        if (Files.isRegularFile(calibrationFile)) {
+            final Properties properties = new Properties();
+            try (InputStream in = Files.newInputStream(calibrationFile)) {
+                properties.load(in);
+                audioOffset = Long.parseLong(properties.getProperty("audio", "0"));
+                for (int light = 0; light < relayOffsets.length; light++) {
+                    relayOffsets[light] = Long.parseLong(properties.getProperty("relay." + light, "0"));
+                }
+            } catch (IOException | NumberFormatException e) {
+                Main.logger.warning("Failed to read calibration, using no offsets");
+            }
+        }
+        WAVPlayer.getClock().setOutputLatency(audioOffset);
+        WAVPlayer.setLightOffsets(relayOffsets);
+    }
+
+    /**
+     * Gets how late the audio is heard
+     * @return offset in microseconds
+     */
+    public static synchronized long getAudioOffset() {
+        return audioOffset;
+    }
+
+    /**
+     * Sets how late the audio is heard. The lights are held back by this much
+     * @param microseconds offset in microseconds
+     */
+    public static synchronized void setAudioOffset(final long microseconds) {
+        audioOffset = Math.max(0, microseconds);
+        WAVPlayer.getClock().setOutputLatency(audioOffset);
+        WAVPlayer.rearmBeats();
+        save();
+    }
+
+    /**
+     * Gets how late a relay switches
+     * @param light light of the relay
+     * @return offset in microseconds
+     */
+    public static synchronized long getRelayOffset(final int light) {
+        return relayOffsets[light];
+    }
+
+    /**
+     * Sets how late a relay switches. The light is switched this much earlier
+     * @param light light of the relay
+     * @param microseconds offset in microseconds
+     */
+    public static synchronized void setRelayOffset(final int light, final long microseconds) {
+        relayOffsets[light] = Math.max(0, microseconds);
+        WAVPlayer.setLightOffsets(relayOffsets);
+        save();
+    }
+
+    /**
+     * Records a tap along to the beat of the current Song. The gap between the tap and the nearest beat
+     * is how far the lights are off
+     * @return how far off this tap was in microseconds, or null if there is no beat near it
+     */
+    public static synchronized Long tap() {
+        final BeatTimeline beats = WAVPlayer.getBeats();
+        if (!WAVPlayer.isPlaying() || beats.size() == 0) {
+            return null;
+        }
+
+        final long position = WAVPlayer.getCurrentPosition();
+        final int after = beats.indexAfter(position);
+        long error = Long.MAX_VALUE;
+        // The closest events that turn a light on, before and after the tap
+        for (int event = after - 1; event >= 0; event--) {
+            if (turnsOn(beats, event)) {
+                error = position - beats.getTime(event);
+                break;
+            }
+        }
+        for (int event = after; event < beats.size(); event++) {
+            if (turnsOn(beats, event)) {
+                final long candidate = position - beats.getTime(event);
+                if (Math.abs(candidate) < Math.abs(error)) {
+                    error = candidate;
+                }
+                break;
+            }
+        }
+        if (error == Long.MAX_VALUE || Math.abs(error) > MAX_TAP_ERROR) {
+            return null;
+        }
+
+        taps.add(error);
+        return error;
+    }
+
+    private static boolean turnsOn(final BeatTimeline beats, final int event) {
+        final long before = event > 0 ? beats.getState(event - 1) : 0;
+        return (beats.getState(event) & ~before) != 0;
+    }
+
+    /**
+     * Gets the number of taps since the last applyTaps
+     * @return tap count
+     */
+    public static synchronized int getTapCount() {
+        return taps.size();
+    }
+
+    /**
+     * Moves the audio offset by the median of the taps. Lights that looked early are held back further
+     * @return false if there were no taps
+     */
+    public static synchronized boolean applyTaps() {
+        if (taps.isEmpty()) {
+            return false;
+        }
+        final long[] sorted = taps.stream().mapToLong(Long::longValue).sorted().toArray();
+        taps.clear();
+        setAudioOffset(audioOffset + sorted[sorted.length / 2]);
+        return true;
+    }
+
+    /**
+     * Sets every offset back to 0 and forgets the taps
+     */
+    public static synchronized void reset() {
+        taps.clear();
+        Arrays.fill(relayOffsets, 0);
+        WAVPlayer.setLightOffsets(relayOffsets);
+        setAudioOffset(0);
+    }
+
+    private static void save() {
+        final Properties properties = new Properties();
+        properties.setProperty("audio", Long.toString(audioOffset));
+        for (int light = 0; light < relayOffsets.length; light++) {
+            if (relayOffsets[light] != 0) {
+                properties.setProperty("relay." + light, Long.toString(relayOffsets[light]));
+            }
+        }
+
+        try (OutputStream out = Files.newOutputStream(calibrationFile)) {
+            properties.store(out, "Offsets in microseconds");
+        } catch (IOException e) {
+            Main.logger.warning("Failed to save calibration");
+        }
+    }
+}
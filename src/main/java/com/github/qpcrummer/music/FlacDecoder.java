@@ -0,0 +1,665 @@
+package com.github.qpcrummer.music;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Decodes a FLAC file to little endian signed PCM one frame at a time, so only one block of samples is ever in memory.
+ * Streams of up to 24 bits per sample and 8 channels are supported
+ */
+final class FlacDecoder extends InputStream {
+    private static final int MAGIC = 0x664C6143;
+    private static final int MAX_BITS = 24;
+    private static final int STREAMINFO = 0;
+    private static final int VORBIS_COMMENT = 4;
+    private static final int[] SAMPLE_SIZES = {0, 8, 12, 0, 16, 20, 24, 0};
+    private static final int[] CRC8 = new int[256];
+    private static final int[] CRC16 = new int[256];
+
+    static {
+        for (int i = 0; i < CRC8.length; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x80) != 0 ? (crc << 1) ^ 0x07 : crc << 1;
+            }
+            CRC8[i] = crc & 0xFF;
+
+            int crc16 = i << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc16 = (crc16 & 0x8000) != 0 ? (crc16 << 1) ^ 0x8005 : crc16 << 1;
+            }
+            CRC16[i] = crc16 & 0xFFFF;
+        }
+    }
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[1 << 16];
+    private int bufferPosition;
+    private int bufferLength;
+    // Bits not read yet, left aligned
+    private long cache;
+    private int cacheBits;
+    private int crc;
+    // CRC-16 of the frame after every byte that went into the cache. The cache reads up to 8 bytes ahead,
+    // so the CRC up to what has been read is looked up from before those bytes were added
+    private final int[] frameCrcs = new int[16];
+    private int frameBytes;
+
+    final int sampleRate;
+    final int channels;
+    final int bitsPerSample;
+    // Samples per channel, or 0 if the encoder didn't know
+    final long totalSamples;
+    final int outputBits;
+    String title;
+    String artist;
+
+    private final int[][] samples;
+    private final int[] coefficients = new int[32];
+    // Channel assignment of the current frame
+    private int assignment;
+    // The last decoded block as PCM
+    private final byte[] block;
+    private int blockPosition;
+    private int blockLength;
+
+    /**
+     * Reads the metadata blocks, leaving the stream at the first frame
+     * @param path FLAC file
+     * @param pcm16 true to decode to 16 bits whatever the source has
+     */
+    private FlacDecoder(final Path path, final boolean pcm16) throws UnsupportedAudioFileException, IOException {
+        this.in = Files.newInputStream(path);
+        try {
+            if (readBits(32) != MAGIC) {
+                throw new UnsupportedAudioFileException("Not a FLAC file: " + path);
+            }
+
+            int rate = 0;
+            int channelCount = 0;
+            int bits = 0;
+            long total = 0;
+            int maxBlockSize = 0;
+            boolean last = false;
+            while (!last) {
+                last = readBits(1) == 1;
+                final int type = readBits(7);
+                final int length = readBits(24);
+                if (type == STREAMINFO) {
+                    readBits(16);
+                    maxBlockSize = readBits(16);
+                    readBits(24);
+                    readBits(24);
+                    rate = readBits(20);
+                    channelCount = readBits(3) + 1;
+                    bits = readBits(5) + 1;
+                    total = (long) readBits(4) << 32 | Integer.toUnsignedLong(readBits(32));
+                    skipBytes(length - 18);
+                } else if (type == VORBIS_COMMENT) {
+                    readComments(length);
+                } else {
+                    skipBytes(length);
+                }
+            }
+            if (rate == 0 || bits < 4 || bits > MAX_BITS || maxBlockSize == 0) {
+                throw new UnsupportedAudioFileException("Unsupported FLAC stream: " + path);
+            }
+
+            this.sampleRate = rate;
+            this.channels = channelCount;
+            this.bitsPerSample = bits;
+            this.totalSamples = total;
+            this.outputBits = pcm16 ? 16 : (bits + 7) & ~7;
+            this.samples = new int[channelCount][maxBlockSize];
+            this.block = new byte[maxBlockSize * channelCount * (this.outputBits / 8)];
+        } catch (IOException | UnsupportedAudioFileException | RuntimeException e) {
+            this.in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Checks if a file is FLAC, going by its extension
+     * @param path file to check
+     * @return true if it ends in .flac
+     */
+    static boolean isFlac(final Path path) {
+        return path.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".flac");
+    }
+
+    /**
+     * Opens a FLAC file for streaming
+     * @param path FLAC file
+     * @param pcm16 true to decode to 16 bits whatever the source has
+     * @return AudioInputStream of signed little endian PCM
+     */
+    static AudioInputStream open(final Path path, final boolean pcm16) throws UnsupportedAudioFileException, IOException {
+        final FlacDecoder decoder = new FlacDecoder(path, pcm16);
+        final AudioFormat format = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, decoder.sampleRate, decoder.outputBits,
+                decoder.channels, decoder.channels * decoder.outputBits / 8, decoder.sampleRate, false);
+        return new AudioInputStream(decoder, format, decoder.totalSamples == 0 ? AudioSystem.NOT_SPECIFIED : decoder.totalSamples);
+    }
+
+    /**
+     * Reads the STREAMINFO and VORBIS_COMMENT blocks without decoding any audio. Close it once done
+     * @param path FLAC file
+     * @return decoder positioned at the first frame
+     */
+    static FlacDecoder readMetadata(final Path path) throws UnsupportedAudioFileException, IOException {
+        return new FlacDecoder(path, false);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (this.blockPosition == this.blockLength && !decodeFrame()) {
+            return -1;
+        }
+        return this.block[this.blockPosition++] & 0xFF;
+    }
+
+    @Override
+    public int read(final byte[] bytes, final int offset, final int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (this.blockPosition == this.blockLength && !decodeFrame()) {
+            return -1;
+        }
+        final int count = Math.min(length, this.blockLength - this.blockPosition);
+        System.arraycopy(this.block, this.blockPosition, bytes, offset, count);
+        this.blockPosition += count;
+        return count;
+    }
+
+    /**
+     * Skips by decoding, since frames can only be found by reading them
+     */
+    @Override
+    public long skip(final long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n) {
+            if (this.blockPosition == this.blockLength && !decodeFrame()) {
+                break;
+            }
+            final int count = (int) Math.min(n - skipped, this.blockLength - this.blockPosition);
+            this.blockPosition += count;
+            skipped += count;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return this.blockLength - this.blockPosition;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.in.close();
+    }
+
+    /**
+     * Decodes the next frame into the block buffer. Frames with a damaged header are skipped by looking for the
+     * next frame header. A frame whose header is fine but whose audio is damaged is played as silence,
+     * so the rest of the Song stays in time with its beats
+     * @return false at the end of the stream
+     */
+    private boolean decodeFrame() throws IOException {
+        try {
+            while (true) {
+                alignToByte();
+                final int blockSize = readFrameHeader();
+                if (blockSize == 0) {
+                    continue;
+                }
+                try {
+                    decodeSubframes(blockSize);
+                    alignToByte();
+                    final int expected = this.frameCrcs[(this.frameBytes - (this.cacheBits >>> 3)) & 15];
+                    if (readBits(16) != expected) {
+                        throw new IOException("FLAC frame CRC mismatch");
+                    }
+                } catch (EOFException e) {
+                    throw e;
+                } catch (IOException e) {
+                    // The next frame header is searched for from here
+                    for (final int[] channel : this.samples) {
+                        Arrays.fill(channel, 0, blockSize, 0);
+                    }
+                }
+                writeBlock(blockSize);
+                return true;
+            }
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Finds the next sync code and reads the frame header after it
+     * @return samples per channel in the frame, or 0 if the header is damaged
+     */
+    private int readFrameHeader() throws IOException {
+        int previous = readBits(8);
+        while (true) {
+            final int current = readBits(8);
+            if (previous == 0xFF && (current & 0xFE) == 0xF8) {
+                // The CRCs cover the sync code too
+                this.crc = CRC8[CRC8[0xFF] ^ current];
+                startFrameCrc(current);
+                break;
+            }
+            previous = current;
+        }
+
+        final int codes = headerByte();
+        final int assignment = headerByte();
+        // Frame or sample number, coded like UTF-8
+        final int first = headerByte();
+        final int extra = Integer.numberOfLeadingZeros(~first << 24);
+        if (extra == 1 || extra > 7) {
+            return 0;
+        }
+        for (int i = 1; i < extra; i++) {
+            if ((headerByte() & 0xC0) != 0x80) {
+                return 0;
+            }
+        }
+
+        final int sizeCode = codes >>> 4;
+        final int blockSize = switch (sizeCode) {
+            case 0 -> 0;
+            case 1 -> 192;
+            case 2, 3, 4, 5 -> 576 << (sizeCode - 2);
+            case 6 -> headerByte() + 1;
+            case 7 -> (headerByte() << 8 | headerByte()) + 1;
+            default -> 256 << (sizeCode - 8);
+        };
+        final int rateCode = codes & 0x0F;
+        if (rateCode == 12) {
+            headerByte();
+        } else if (rateCode == 13 || rateCode == 14) {
+            headerByte();
+            headerByte();
+        }
+
+        final int expected = this.crc;
+        if (readBits(8) != expected || blockSize == 0 || blockSize > this.samples[0].length || rateCode == 15) {
+            return 0;
+        }
+        final int sizeBits = (assignment >>> 1) & 0x07;
+        if (sizeBits != 0 && SAMPLE_SIZES[sizeBits] != this.bitsPerSample) {
+            return 0;
+        }
+        this.assignment = assignment >>> 4;
+        return blockSize;
+    }
+
+    /**
+     * Starts the CRC-16 of a frame at its sync code, then adds the bytes the cache has already read past it
+     * @param sync second byte of the sync code
+     */
+    private void startFrameCrc(final int sync) {
+        int crc16 = CRC16[0xFF];
+        crc16 = ((crc16 << 8) ^ CRC16[(crc16 >>> 8) ^ sync]) & 0xFFFF;
+        this.frameBytes = 0;
+        this.frameCrcs[0] = crc16;
+        for (int shift = 56; shift > 56 - this.cacheBits; shift -= 8) {
+            crc16 = ((crc16 << 8) ^ CRC16[(crc16 >>> 8) ^ (int) (this.cache >>> shift & 0xFF)]) & 0xFFFF;
+            this.frameCrcs[++this.frameBytes & 15] = crc16;
+        }
+    }
+
+    private int headerByte() throws IOException {
+        final int value = readBits(8);
+        this.crc = CRC8[this.crc ^ value];
+        return value;
+    }
+
+    private void decodeSubframes(final int blockSize) throws IOException {
+        final int bits = this.bitsPerSample;
+        if (this.assignment < 8) {
+            if (this.assignment + 1 != this.channels) {
+                throw new IOException("FLAC frame has the wrong number of channels");
+            }
+            for (int channel = 0; channel < this.channels; channel++) {
+                decodeSubframe(this.samples[channel], blockSize, bits);
+            }
+            return;
+        }
+
+        if (this.channels != 2) {
+            throw new IOException("FLAC stereo frame in a stream without two channels");
+        }
+        final int[] left = this.samples[0];
+        final int[] right = this.samples[1];
+        switch (this.assignment) {
+            case 8 -> {
+                decodeSubframe(left, blockSize, bits);
+                decodeSubframe(right, blockSize, bits + 1);
+                for (int i = 0; i < blockSize; i++) {
+                    right[i] = left[i] - right[i];
+                }
+            }
+            case 9 -> {
+                decodeSubframe(left, blockSize, bits + 1);
+                decodeSubframe(right, blockSize, bits);
+                for (int i = 0; i < blockSize; i++) {
+                    left[i] += right[i];
+                }
+            }
+            case 10 -> {
+                decodeSubframe(left, blockSize, bits);
+                decodeSubframe(right, blockSize, bits + 1);
+                for (int i = 0; i < blockSize; i++) {
+                    final int side = right[i];
+                    final int mid = (left[i] << 1) | (side & 1);
+                    left[i] = (mid + side) >> 1;
+                    right[i] = (mid - side) >> 1;
+                }
+            }
+            default -> throw new IOException("Reserved FLAC channel assignment");
+        }
+    }
+
+    private void decodeSubframe(final int[] output, final int blockSize, final int sampleBits) throws IOException {
+        final int header = readBits(8);
+        if ((header & 0x80) != 0) {
+            throw new IOException("Damaged FLAC subframe");
+        }
+        final int type = (header >>> 1) & 0x3F;
+        int wasted = 0;
+        if ((header & 1) != 0) {
+            wasted = readUnary() + 1;
+            if (wasted >= sampleBits) {
+                throw new IOException("Damaged FLAC subframe");
+            }
+        }
+        final int bits = sampleBits - wasted;
+
+        if (type == 0) {
+            final int value = readSigned(bits);
+            for (int i = 0; i < blockSize; i++) {
+                output[i] = value;
+            }
+        } else if (type == 1) {
+            for (int i = 0; i < blockSize; i++) {
+                output[i] = readSigned(bits);
+            }
+        } else if (type >= 8 && type <= 12) {
+            decodeFixed(output, blockSize, bits, type - 8);
+        } else if (type >= 32) {
+            decodeLpc(output, blockSize, bits, type - 31);
+        } else {
+            throw new IOException("Reserved FLAC subframe type");
+        }
+
+        if (wasted > 0) {
+            for (int i = 0; i < blockSize; i++) {
+                output[i] <<= wasted;
+            }
+        }
+    }
+
+    private void decodeFixed(final int[] output, final int blockSize, final int bits, final int order) throws IOException {
+        for (int i = 0; i < order; i++) {
+            output[i] = readSigned(bits);
+        }
+        decodeResidual(output, blockSize, order);
+        switch (order) {
+            case 1 -> {
+                for (int i = 1; i < blockSize; i++) {
+                    output[i] += output[i - 1];
+                }
+            }
+            case 2 -> {
+                for (int i = 2; i < blockSize; i++) {
+                    output[i] += 2 * output[i - 1] - output[i - 2];
+                }
+            }
+            case 3 -> {
+                for (int i = 3; i < blockSize; i++) {
+                    output[i] += 3 * output[i - 1] - 3 * output[i - 2] + output[i - 3];
+                }
+            }
+            case 4 -> {
+                for (int i = 4; i < blockSize; i++) {
+                    output[i] += 4 * output[i - 1] - 6 * output[i - 2] + 4 * output[i - 3] - output[i - 4];
+                }
+            }
+            default -> {
+                // Order 0 is the residual itself
+            }
+        }
+    }
+
+    private void decodeLpc(final int[] output, final int blockSize, final int bits, final int order) throws IOException {
+        if (order > blockSize) {
+            throw new IOException("FLAC predictor is longer than its block");
+        }
+        for (int i = 0; i < order; i++) {
+            output[i] = readSigned(bits);
+        }
+        final int precision = readBits(4) + 1;
+        final int shift = readSigned(5);
+        if (precision == 16 || shift < 0) {
+            throw new IOException("Damaged FLAC predictor");
+        }
+        final int[] coefficients = this.coefficients;
+        for (int i = 0; i < order; i++) {
+            coefficients[i] = readSigned(precision);
+        }
+        decodeResidual(output, blockSize, order);
+
+        for (int i = order; i < blockSize; i++) {
+            long sum = 0;
+            for (int j = 0; j < order; j++) {
+                sum += (long) coefficients[j] * output[i - 1 - j];
+            }
+            output[i] += (int) (sum >> shift);
+        }
+    }
+
+    /**
+     * Reads the Rice coded residual after the warm up samples
+     */
+    private void decodeResidual(final int[] output, final int blockSize, final int order) throws IOException {
+        final int method = readBits(2);
+        if (method > 1) {
+            throw new IOException("Reserved FLAC residual coding");
+        }
+        final int parameterBits = method == 0 ? 4 : 5;
+        final int escape = (1 << parameterBits) - 1;
+        final int partitionOrder = readBits(4);
+        final int partitionSize = blockSize >>> partitionOrder;
+        if (partitionSize << partitionOrder != blockSize || partitionSize < order) {
+            throw new IOException("Damaged FLAC residual");
+        }
+
+        int i = order;
+        for (int partition = 0; partition < 1 << partitionOrder; partition++) {
+            final int end = (partition + 1) * partitionSize;
+            final int parameter = readBits(parameterBits);
+            if (parameter == escape) {
+                final int bits = readBits(5);
+                for (; i < end; i++) {
+                    output[i] = readSigned(bits);
+                }
+                continue;
+            }
+            for (; i < end; i++) {
+                final int value = readUnary() << parameter | readBits(parameter);
+                output[i] = (value >>> 1) ^ -(value & 1);
+            }
+        }
+    }
+
+    /**
+     * Interleaves the decoded channels into little endian PCM of outputBits
+     */
+    private void writeBlock(final int blockSize) {
+        final int shift = this.outputBits - this.bitsPerSample;
+        final int bytes = this.outputBits / 8;
+        int position = 0;
+        for (int i = 0; i < blockSize; i++) {
+            for (int channel = 0; channel < this.channels; channel++) {
+                final int sample = shift >= 0 ? this.samples[channel][i] << shift : this.samples[channel][i] >> -shift;
+                for (int b = 0; b < bytes; b++) {
+                    this.block[position++] = (byte) (sample >> (b * 8));
+                }
+            }
+        }
+        this.blockPosition = 0;
+        this.blockLength = position;
+    }
+
+    /**
+     * Reads the TITLE and ARTIST of a VORBIS_COMMENT block, which unlike the rest of FLAC is little endian
+     */
+    private void readComments(final int length) throws IOException {
+        final byte[] comments = new byte[length];
+        for (int i = 0; i < length; i++) {
+            comments[i] = (byte) readBits(8);
+        }
+        int offset = 0;
+        final int vendor = littleEndianInt(comments, offset);
+        offset += 4 + vendor;
+        final int count = littleEndianInt(comments, offset);
+        offset += 4;
+        for (int i = 0; i < count && offset + 4 <= length; i++) {
+            final int commentLength = littleEndianInt(comments, offset);
+            offset += 4;
+            if (commentLength < 0 || offset + commentLength > length) {
+                return;
+            }
+            final String comment = new String(comments, offset, commentLength, StandardCharsets.UTF_8);
+            offset += commentLength;
+            final int equals = comment.indexOf('=');
+            if (equals < 0) {
+                continue;
+            }
+            final String key = comment.substring(0, equals).toUpperCase(Locale.ROOT);
+            final String value = comment.substring(equals + 1).trim();
+            if (key.equals("TITLE") && !value.isBlank()) {
+                this.title = value;
+            } else if (key.equals("ARTIST") && !value.isBlank()) {
+                this.artist = value;
+            }
+        }
+    }
+
+    private static int littleEndianInt(final byte[] bytes, final int offset) {
+        if (offset < 0 || offset + 4 > bytes.length) {
+            return -1;
+        }
+        return (bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8 | (bytes[offset + 2] & 0xFF) << 16 | bytes[offset + 3] << 24;
+    }
+
+    private void refill() throws IOException {
+        while (this.cacheBits <= 56) {
+            if (this.bufferPosition == this.bufferLength) {
+                this.bufferLength = this.in.read(this.buffer);
+                this.bufferPosition = 0;
+                if (this.bufferLength <= 0) {
+                    this.bufferLength = 0;
+                    return;
+                }
+            }
+            final int value = this.buffer[this.bufferPosition++] & 0xFF;
+            this.cache |= (long) value << (56 - this.cacheBits);
+            this.cacheBits += 8;
+            final int crc16 = this.frameCrcs[this.frameBytes & 15];
+            this.frameCrcs[++this.frameBytes & 15] = ((crc16 << 8) ^ CRC16[(crc16 >>> 8) ^ value]) & 0xFFFF;
+        }
+    }
+
+    /**
+     * Reads up to 32 bits as an unsigned number
+     */
+    private int readBits(final int bits) throws IOException {
+        if (bits == 0) {
+            return 0;
+        }
+        if (this.cacheBits < bits) {
+            refill();
+            if (this.cacheBits < bits) {
+                throw new EOFException();
+            }
+        }
+        final int value = (int) (this.cache >>> (64 - bits));
+        this.cache <<= bits;
+        this.cacheBits -= bits;
+        return value;
+    }
+
+    /**
+     * Reads up to 32 bits as a two's complement number
+     */
+    private int readSigned(final int bits) throws IOException {
+        if (bits == 0) {
+            return 0;
+        }
+        return readBits(bits) << (32 - bits) >> (32 - bits);
+    }
+
+    /**
+     * Counts zero bits up to the next one bit, which is skipped
+     */
+    private int readUnary() throws IOException {
+        int count = 0;
+        while (true) {
+            if (this.cacheBits == 0) {
+                refill();
+                if (this.cacheBits == 0) {
+                    throw new EOFException();
+                }
+            }
+            if (this.cache == 0) {
+                count += this.cacheBits;
+                this.cacheBits = 0;
+                continue;
+            }
+            final int zeros = Long.numberOfLeadingZeros(this.cache);
+            this.cache <<= zeros;
+            this.cache <<= 1;
+            this.cacheBits -= zeros + 1;
+            return count + zeros;
+        }
+    }
+
+    private void alignToByte() {
+        final int extra = this.cacheBits & 7;
+        this.cache <<= extra;
+        this.cacheBits -= extra;
+    }
+
+    /**
+     * Skips whole bytes, such as pictures in the metadata, without reading them
+     */
+    private void skipBytes(long count) throws IOException {
+        while (count > 0 && this.cacheBits > 0) {
+            readBits(8);
+            count--;
+        }
+        final int buffered = (int) Math.min(count, this.bufferLength - this.bufferPosition);
+        this.bufferPosition += buffered;
+        count -= buffered;
+        while (count > 0) {
+            final long skipped = this.in.skip(count);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            count -= skipped;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.github.qpcrummer.music;
+
+import com.github.qpcrummer.Main;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioSystem;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Walks playlists for Songs on virtual threads, one per directory. Songs are handed over a directory at a time
+ * while the scan is still running, so the jukebox can be used before a large library is done
+ */
+final class LibraryScanner {
+    private static final Set<String> PLAYABLE = Stream.concat(Arrays.stream(AudioSystem.getAudioFileTypes())
+                    .map(AudioFileFormat.Type::getExtension), Stream.of("flac"))
+            .map(extension -> extension.toLowerCase(Locale.ROOT))
+            .collect(Collectors.toUnmodifiableSet());
+
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    // Directories that are queued or being scanned
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicInteger found = new AtomicInteger();
+    private final Consumer<List<Path>> onSongs;
+    private final IntConsumer onDone;
+    private volatile boolean cancelled;
+
+    private LibraryScanner(final Consumer<List<Path>> onSongs, final IntConsumer onDone) {
+        this.onSongs = onSongs;
+        this.onDone = onDone;
+    }
+
+    /**
+     * Starts scanning and returns straight away
+     * @param playlists playlist directories
+     * @param onSongs called from a scanning thread with the sorted Songs of one directory
+     * @param onDone called with the number of Songs found once every directory is scanned
+     * @return the running scan
+     */
+    static LibraryScanner scan(final List<Path> playlists, final Consumer<List<Path>> onSongs, final IntConsumer onDone) {
+        final LibraryScanner scanner = new LibraryScanner(onSongs, onDone);
+        if (playlists.isEmpty()) {
+            scanner.executor.shutdown();
+            onDone.accept(0);
+            return scanner;
+        }
+
+        // Count every playlist up front so the first one to finish doesn't look like the last
+        scanner.pending.addAndGet(playlists.size());
+        for (final Path playlist : playlists) {
+            scanner.execute(playlist);
+        }
+        return scanner;
+    }
+
+    /**
+     * Stops the scan. A directory that is already being handed over still finishes
+     */
+    void cancel() {
+        this.cancelled = true;
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * Checks if the AudioSystem or the FlacDecoder can play a file, going by its extension
+     * @param file file to check
+     * @return true if it is a Song
+     */
+    static boolean isPlayable(final Path file) {
+        final String name = file.getFileName().toString();
+        final int dot = name.lastIndexOf('.');
+        return dot >= 0 && PLAYABLE.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    private void execute(final Path directory) {
+        try {
+            this.executor.execute(() -> {
+                try {
+                    scanDirectory(directory);
+                } finally {
+                    finish();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Cancelled while queueing
+            finish();
+        }
+    }
+
+    private void finish() {
+        if (this.pending.decrementAndGet() == 0 && !this.cancelled) {
+            this.executor.shutdown();
+            this.onDone.accept(this.found.get());
+        }
+    }
+
+    private void scanDirectory(final Path directory) {
+        final List<Path> songs = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (final Path entry : entries) {
+                if (this.cancelled) {
+                    return;
+                }
+                // Linked directories are skipped, a link back up the tree would be scanned forever
+                if (Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                    this.pending.incrementAndGet();
+                    execute(entry);
+                } else if (Files.isRegularFile(entry) && isPlayable(entry)) {
+                    // The beat directory waits until the Song is loaded, so the scan never hashes
+                    songs.add(entry);
+                }
+            }
+        } catch (IOException e) {
+            Main.logger.warning("File path not accessible: " + directory);
+            return;
+        }
+
+        if (!songs.isEmpty() && !this.cancelled) {
+            songs.sort(null);
+            this.found.addAndGet(songs.size());
+            this.onSongs.accept(songs);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.github.qpcrummer.music;
+
+import com.github.qpcrummer.Main;
+import com.github.qpcrummer.beat.BeatFile;
+import com.github.qpcrummer.directories.Directories;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Watches the music and beat directories, so Songs and beat files can be added or edited while the jukebox runs.
+ * Changes are gathered until the directories have been quiet for a moment, then applied all at once
+ */
+public final class LibraryWatcher {
+    // How long the directories must be quiet before changes are applied, in milliseconds
+    private static final long QUIET_TIME = 500;
+    private static WatchService watchService;
+    private static final Map<WatchKey, Path> directories = new HashMap<>();
+
+    private LibraryWatcher() {
+    }
+
+    /**
+     * Starts watching on a background Thread. Calling this again does nothing
+     */
+    public static synchronized void start() {
+        if (watchService != null) {
+            return;
+        }
+
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            registerTree(Directories.music, new HashSet<>());
+            registerTree(Directories.beats, new HashSet<>());
+        } catch (IOException e) {
+            Main.logger.warning("Failed to watch the music and beat folders, changes need a restart");
+            return;
+        }
+
+        final Thread watcher = new Thread(LibraryWatcher::watch, "Library Watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    private static void watch() {
+        final Set<Path> changed = new HashSet<>();
+        while (true) {
+            final WatchKey key;
+            try {
+                key = changed.isEmpty() ? watchService.take() : watchService.poll(QUIET_TIME, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            if (key == null) {
+                apply(changed);
+                changed.clear();
+                continue;
+            }
+
+            final Path directory = directories.get(key);
+            for (final WatchEvent<?> event : key.pollEvents()) {
+                if (directory == null) {
+                    continue;
+                }
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    // Events were lost, so treat the whole directory as changed
+                    changed.add(directory);
+                    continue;
+                }
+
+                final Path path = directory.resolve((Path) event.context());
+                changed.add(path);
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+                    // Files copied in with a new folder can land before the folder is watched
+                    registerTree(path, changed);
+                }
+            }
+            if (!key.reset()) {
+                directories.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Watches a directory and everything under it
+     * @param found collects every file already in the tree
+     */
+    private static void registerTree(final Path root, final Set<Path> found) {
+        try (Stream<Path> tree = Files.walk(root)) {
+            tree.forEach(path -> {
+                if (Files.isDirectory(path)) {
+                    try {
+                        directories.put(path.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                                StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), path);
+                    } catch (IOException e) {
+                        Main.logger.warning("Failed to watch folder: " + path);
+                    }
+                } else {
+                    found.add(path);
+                }
+            });
+        } catch (IOException e) {
+            Main.logger.warning("Failed to watch folder: " + root);
+        }
+    }
+
+    /**
+     * Sorts the changes into Playlists, Songs and beat directories, and updates only what they touch
+     */
+    private static void apply(final Set<Path> changed) {
+        final Path music = Directories.music.toAbsolutePath().normalize();
+        final Path beats = Directories.beats.toAbsolutePath().normalize();
+        boolean playlistsChanged = false;
+        final List<Path> songs = new ArrayList<>();
+        final Set<Path> beatDirectories = new HashSet<>();
+
+        for (final Path path : changed) {
+            final Path absolute = path.toAbsolutePath().normalize();
+            if (absolute.startsWith(beats) && !absolute.equals(beats)) {
+                // Compiled files are written by the jukebox itself
+                if (absolute.getFileName().toString().startsWith(BeatFile.FILE_NAME)) {
+                    continue;
+                }
+                beatDirectories.add(absolute.getParent().equals(beats) ? absolute : absolute.getParent());
+            } else if (absolute.startsWith(music) && !absolute.equals(music)) {
+                if (absolute.getParent().equals(music)) {
+                    playlistsChanged = true;
+                } else {
+                    songs.add(path);
+                }
+            }
+        }
+
+        if (playlistsChanged) {
+            MusicUtils.refreshPlaylists();
+        }
+        if (!songs.isEmpty()) {
+            MusicUtils.updateSongs(songs);
+        }
+        if (!beatDirectories.isEmpty()) {
+            WAVPlayer.reloadBeats(beatDirectories);
+        }
+    }
+}
@@ -1,74 +1,196 @@
 package com.github.qpcrummer.music;
 
-import com.drew.imaging.ImageMetadataReader;
-import com.drew.imaging.ImageProcessingException;
-import com.drew.metadata.Directory;
-import com.drew.metadata.Metadata;
-import com.drew.metadata.Tag;
 import com.github.qpcrummer.Main;
+import com.github.qpcrummer.beat.BeatDetector;
 import com.github.qpcrummer.directories.Directories;
 import com.github.qpcrummer.gui.NewJukeboxGUI;
 import com.github.qpcrummer.gui.NewPlaylistGUI;
 
-import java.io.File;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Objects;
-import java.util.stream.Stream;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 import java.util.stream.StreamSupport;
 
 public final class MusicUtils {
 
-    public static final List<Path> playlists = listPlaylists();
-    public static final boolean[] selectedPlaylists = new boolean[playlists.size()];
+    /**
+     * The Playlists and which of them are selected. A new Playlists replaces the old one as a whole when the
+     * folders change, so a reader that keeps one never sees a list and a selection that don't match
+     * @param paths Playlist directories, sorted
+     * @param selected true for every selected Playlist, same order as paths. Only written while holding the MusicUtils lock
+     */
+    public record Playlists(List<Path> paths, boolean[] selected) {
+        public boolean isAnySelected() {
+            for (final boolean playlist : this.selected) {
+                if (playlist) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    public static volatile Playlists playlists = listPlaylists(new Playlists(List.of(), new boolean[0]));
+    private static LibraryScanner scanner;
+    private static int scanGeneration;
+    // Set by the "detect" launch argument. Detection is heavy, so it is only run on every load when asked for
+    public static volatile boolean detectOnLoad;
+    // Every Song in the jukebox, so the LibraryWatcher and the LibraryScanner never add one twice
+    private static final Set<Path> loadedSongs = new HashSet<>();
 
     /**
-     * Combines multiple Playlist paths into one
-     * @return Combined song paths for both playlists
+     * Empties the jukebox and fills it with the Songs of every selected Playlist.
+     * The Playlists are scanned in the background, and Songs show up as they are found
      */
-    public static Path[] combinePlayLists() {
-        final List<Path> combined = new ArrayList<>();
-        for (Path path : getSelectedPlaylists()) {
-            combined.addAll(Arrays.asList(createSongArrayList(path)));
+    public static synchronized void loadSelectedPlaylists() {
+        if (scanner != null) {
+            scanner.cancel();
         }
-        return combined.toArray(new Path[0]);
+        final int generation = ++scanGeneration;
+
+        loadedSongs.clear();
+        initializeJukebox(new Path[0]);
+        scanner = LibraryScanner.scan(getSelectedPlaylists(),
+                songs -> addSongs(songs, generation),
+                count -> {
+                    Main.logger.info("Found " + count + " Songs");
+                    SongCatalog.save();
+                    detectLoaded(generation);
+                });
     }
 
     /**
-     * Iterates through files to find songs
-     * @param path Playlist path
-     * @return All songs' paths within a playlist
+     * Detects beats for the loaded Songs without beat files, once their scan is done and only if nothing replaced it
      */
-    private static Path[] createSongArrayList(final Path path) {
+    private static synchronized void detectLoaded(final int generation) {
+        final Path[] songs = WAVPlayer.songPaths;
+        if (detectOnLoad && generation == scanGeneration && songs != null && songs.length > 0) {
+            BeatDetector.detectMissing(songs);
+        }
+    }
 
-        List<Path> paths = new ArrayList<>();
+    /**
+     * Scans Playlists without loading them into the jukebox, and waits for the scan to finish
+     * @param playlists Playlist directories
+     * @return every Song in them, sorted
+     */
+    public static List<Path> findSongs(final List<Path> playlists) {
+        final List<Path> songs = new ArrayList<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        LibraryScanner.scan(playlists, found -> {
+            synchronized (songs) {
+                songs.addAll(found);
+            }
+        }, count -> done.countDown());
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (songs) {
+            songs.sort(null);
+            return List.copyOf(songs);
+        }
+    }
 
-        try (final Stream<Path> walk = Files.walk(path)) {
-            walk.filter(Files::isRegularFile).forEach(file -> {
-                Directories.createBeatDirectory(file);
-                paths.add(file);
-            });
-        } catch (IOException e) {
-            Main.logger.warning("File path not accessible!");
+    /**
+     * Adds Songs from the LibraryScanner to the end of the jukebox
+     */
+    private static synchronized void addSongs(final List<Path> songs, final int generation) {
+        if (generation != scanGeneration) {
+            return;
+        }
+        final Path[] newSongs = songs.stream()
+                .filter(song -> loadedSongs.add(song.toAbsolutePath().normalize()))
+                .toArray(Path[]::new);
+        if (newSongs.length > 0) {
+            WAVPlayer.addSongs(newSongs);
         }
-        return paths.toArray(new Path[0]);
     }
 
     /**
-     * Gets all playlists that have 'true' in selectedPlaylists
+     * Applies Songs that were added, changed or deleted in a selected Playlist while the jukebox is running.
+     * New Songs are added to the end, and deleted Songs are taken out of the list and the play order.
+     * Songs outside the selected Playlists, and Songs that are already loaded, are left out
+     * @param songs new, changed or deleted files and directories
+     */
+    static synchronized void updateSongs(final List<Path> songs) {
+        if (scanner == null) {
+            // The jukebox isn't loaded
+            return;
+        }
+        if (!Main.cli) {
+            NewJukeboxGUI.forgetTitles(songs);
+        }
+
+        final List<Path> selected = getSelectedPlaylists().stream().map(path -> path.toAbsolutePath().normalize()).toList();
+        final List<Path> added = new ArrayList<>();
+        final Set<Path> removed = new HashSet<>();
+        for (final Path song : songs) {
+            final Path absolute = song.toAbsolutePath().normalize();
+            if (Files.notExists(song)) {
+                // A deleted directory takes its Songs with it
+                for (final Path loaded : loadedSongs) {
+                    if (loaded.startsWith(absolute)) {
+                        removed.add(loaded);
+                    }
+                }
+            } else if (Files.isRegularFile(song) && LibraryScanner.isPlayable(song) && selected.stream().anyMatch(absolute::startsWith)) {
+                added.add(song);
+            }
+        }
+        if (!removed.isEmpty()) {
+            loadedSongs.removeAll(removed);
+            WAVPlayer.removeSongs(removed);
+        }
+        if (!added.isEmpty()) {
+            addSongs(added, scanGeneration);
+        }
+    }
+
+    /**
+     * Lists the Playlists again, keeping the ones that were selected
+     */
+    static synchronized void refreshPlaylists() {
+        playlists = listPlaylists(playlists);
+    }
+
+    /**
+     * Selects or deselects a Playlist. Selections made on a Playlists that has been replaced since are moved over
+     * to the current one, so a click is never lost
+     * @param shown the Playlists the index belongs to
+     * @param index index in shown
+     * @param selected true to select it
+     */
+    public static synchronized void setSelected(final Playlists shown, final int index, final boolean selected) {
+        final Playlists current = playlists;
+        final int currentIndex = shown == current ? index : current.paths().indexOf(shown.paths().get(index));
+        if (currentIndex >= 0) {
+            current.selected()[currentIndex] = selected;
+        }
+    }
+
+    /**
+     * Gets all playlists that are selected
      * @return All playlists' paths that are selected
      */
     private static List<Path> getSelectedPlaylists() {
+        final Playlists current = playlists;
         List<Path> path = new ArrayList<>();
-        for (int i = 0; i < selectedPlaylists.length; i++) {
-            if (selectedPlaylists[i]) {
-                path.add(playlists.get(i));
+        for (int i = 0; i < current.selected().length; i++) {
+            if (current.selected()[i]) {
+                path.add(current.paths().get(i));
             }
         }
         return path;
@@ -76,64 +198,82 @@ public final class MusicUtils {
 
     /**
      * This method lists all playlists that will be loaded
+     * @param old Playlists whose selection is kept
      */
-    private static List<Path> listPlaylists() {
-        final List<Path> playlists = new ArrayList<>();
+    private static Playlists listPlaylists(final Playlists old) {
+        final List<Path> paths = new ArrayList<>();
         try (var stream = Files.newDirectoryStream(Directories.music, Files::isDirectory)) {
-            StreamSupport.stream(stream.spliterator(), false).forEach(playlists::add);
+            StreamSupport.stream(stream.spliterator(), false).sorted().forEach(paths::add);
         } catch (IOException e) {
             Main.logger.warning("Playlist path not accessible!");
         }
-        return playlists;
+
+        final boolean[] selected = new boolean[paths.size()];
+        for (int i = 0; i < selected.length; i++) {
+            final int previous = old.paths().indexOf(paths.get(i));
+            selected[i] = previous >= 0 && old.selected()[previous];
+        }
+        return new Playlists(List.copyOf(paths), selected);
+    }
+
+    /**
+     * Stops the background scan of the selected Playlists
+     */
+    private static synchronized void cancelScan() {
+        scanGeneration++;
+        if (scanner != null) {
+            scanner.cancel();
+            scanner = null;
+        }
     }
 
     /**
-     * Initializes values for WAVPlayer.
-     * If it is in GUI mode, it also initializes the titles for the GUI
+     * Initializes values for WAVPlayer. The GUI reads titles itself as Songs come into view
      * @param paths Song paths
      */
     public static void initializeJukebox(Path[] paths) {
         WAVPlayer.songPaths = paths;
+        WAVPlayer.initialize();
+    }
 
-        if (!Main.cli) {
-            NewJukeboxGUI.titleList = new String[WAVPlayer.songPaths.length];
-            for (int i = 0; i < WAVPlayer.songPaths.length; i++) {
-                NewJukeboxGUI.titleList[i] = getTitle(WAVPlayer.songPaths[i]);
-            }
+    /**
+     * Opens a Song for streaming. FLAC is decoded by the FlacDecoder and everything else by the AudioSystem
+     * @param song Song path
+     * @param pcm16 true to convert to 16-bit signed little endian PCM
+     * @return AudioInputStream of the Song
+     */
+    public static AudioInputStream openAudio(final Path song, final boolean pcm16) throws UnsupportedAudioFileException, IOException {
+        if (FlacDecoder.isFlac(song)) {
+            return FlacDecoder.open(song, pcm16);
         }
 
-        WAVPlayer.initialize();
+        final AudioInputStream source = AudioSystem.getAudioInputStream(song.toFile());
+        final AudioFormat format = source.getFormat();
+        final AudioFormat pcm = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, format.getSampleRate(), 16,
+                format.getChannels(), format.getChannels() * 2, format.getSampleRate(), false);
+        if (!pcm16 || format.matches(pcm)) {
+            return source;
+        }
+        return AudioSystem.getAudioInputStream(pcm, source);
     }
 
     /**
-     * Retrieves the Author and Song name from a path
-     * @param path Song path
-     * @return String: "song_name by  author"
+     * Checks if a file is a Song the jukebox can play, going by its extension
+     * @param file file to check
+     * @return true if it is a Song
      */
-    public static String getTitle(Path path) {
-        final File file = new File(String.valueOf(path));
-        return file.getName().replace(".wav", "").replace("_", " ") + " by " + getAuthor(path);
+    public static boolean isPlayable(final Path file) {
+        return LibraryScanner.isPlayable(file);
     }
 
     /**
-     * Gets the author value from WAV metadata
+     * Retrieves the Author and Song name from a path. These come from the SongCatalog, so files are only read once
      * @param path Song path
-     * @return "Artist" value in WAV metadata as a String
-     */
-    private static String getAuthor(Path path) {
-        try (InputStream stream = Files.newInputStream(path)) {
-            final Metadata metadata = ImageMetadataReader.readMetadata(stream);
-            for (final Directory directory : metadata.getDirectories()) {
-                for (final Tag tag : directory.getTags()) {
-                    if (Objects.equals(tag.getTagName(), "Artist")) {
-                        return tag.getDescription();
-                    }
-                }
-            }
-        } catch (ImageProcessingException | IOException e) {
-            Main.logger.warning("Failed to read Author metadata for Song: " + path);
-        }
-        return "Unknown";
+     * @return String: "song_name by  author"
+     */
+    public static String getTitle(Path path) {
+        final SongCatalog.SongInfo info = SongCatalog.get(path);
+        return info.title() + " by " + info.artist();
     }
 
     /**
@@ -141,6 +281,8 @@ public final class MusicUtils {
      * If in GUI mode, it also resets the GUIs
      */
     public static void quit() {
+        cancelScan();
+        SongCatalog.save();
         WAVPlayer.shutDown();
 
         if (!Main.cli) {
@@ -148,7 +290,9 @@ public final class MusicUtils {
             NewPlaylistGUI.shouldRender = true;
         }
 
-        Arrays.fill(selectedPlaylists, false);
+        synchronized (MusicUtils.class) {
+            Arrays.fill(playlists.selected(), false);
+        }
     }
 
     /**
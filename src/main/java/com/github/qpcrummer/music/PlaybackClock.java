@@ -0,0 +1,79 @@
+package com.github.qpcrummer.music;
+
+import javax.sound.sampled.SourceDataLine;
+
+/**
+ * The position of the song that can be heard, taken from the frames the audio line has actually played.
+ * Reading it is a volatile read and one call to the line, so any Thread can use it
+ */
+public final class PlaybackClock {
+    private volatile Anchor current;
+    private volatile Anchor pending;
+    private volatile long outputLatency;
+
+    /**
+     * Ties a frame of the line to a frame of the song
+     * @param line line the song is written to
+     * @param lineFrame frame of the line
+     * @param trackFrame frame of the song that plays at lineFrame
+     * @param frameRate frames per second of the song
+     */
+    private record Anchor(SourceDataLine line, long lineFrame, long trackFrame, float frameRate) {
+    }
+
+    /**
+     * Points the clock at a new position, for example after starting or seeking
+     */
+    void set(final SourceDataLine line, final long lineFrame, final long trackFrame, final float frameRate) {
+        this.pending = null;
+        this.current = new Anchor(line, lineFrame, trackFrame, frameRate);
+    }
+
+    /**
+     * Makes the clock continue with the next song once the line reaches lineFrame
+     */
+    void setPending(final SourceDataLine line, final long lineFrame, final float frameRate) {
+        this.pending = new Anchor(line, lineFrame, 0, frameRate);
+    }
+
+    /**
+     * Stops the clock at 0
+     */
+    void clear() {
+        this.pending = null;
+        this.current = null;
+    }
+
+    /**
+     * Sets how long it takes audio to reach the speakers after the line has played it
+     * @param microseconds output latency
+     */
+    public void setOutputLatency(final long microseconds) {
+        this.outputLatency = microseconds;
+    }
+
+    public long getOutputLatency() {
+        return this.outputLatency;
+    }
+
+    /**
+     * Current position of the song that can be heard
+     * @return position in microseconds
+     */
+    public long getMicroseconds() {
+        Anchor anchor = this.current;
+        if (anchor == null) {
+            return 0;
+        }
+
+        final long lineFrame = anchor.line().getLongFramePosition();
+        final Anchor next = this.pending;
+        if (next != null && next.line() == anchor.line() && lineFrame >= next.lineFrame()) {
+            anchor = next;
+        }
+
+        final long frame = anchor.trackFrame() + Math.max(0, lineFrame - anchor.lineFrame());
+        final long microseconds = (long) (frame * 1_000_000.0 / anchor.frameRate()) - this.outputLatency;
+        return Math.max(0, microseconds);
+    }
+}
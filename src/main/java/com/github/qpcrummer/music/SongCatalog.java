@@ -0,0 +1,201 @@
+package com.github.qpcrummer.music;
+
+import com.github.qpcrummer.Main;
+import com.github.qpcrummer.directories.Directories;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Titles, artists and lengths of every Song seen so far, saved between runs.
+ * An entry is read again only when its file's size or modified time changes
+ */
+public final class SongCatalog {
+    private static final Path catalogFile = Directories.cache.resolve("catalog.bin");
+    private static final int MAGIC = 0x434A4354;
+    private static final int VERSION = 1;
+    private static final String UNKNOWN_ARTIST = "Unknown";
+
+    /**
+     * What the catalog knows about a Song
+     * @param size file size in bytes
+     * @param modified last modified time in milliseconds
+     * @param title title from the INFO chunk, or the file name
+     * @param artist artist from the INFO chunk, or "Unknown"
+     * @param duration length in microseconds, or -1 if it isn't known
+     * @param format audio format, such as "PCM 44100 Hz 16 bit 2 ch"
+     */
+    public record SongInfo(long size, long modified, String title, String artist, long duration, String format) {
+    }
+
+    private static final Map<Path, SongInfo> songs = new ConcurrentHashMap<>();
+    private static volatile boolean loaded;
+    private static volatile boolean changed;
+
+    private SongCatalog() {
+    }
+
+    /**
+     * Gets a Song from the catalog, reading its file if it is new or changed
+     * @param song Song path
+     * @return SongInfo of the Song
+     */
+    public static SongInfo get(final Path song) {
+        load();
+        final Path key = song.toAbsolutePath().normalize();
+        long size = -1;
+        long modified = -1;
+        try {
+            size = Files.size(key);
+            modified = Files.getLastModifiedTime(key).toMillis();
+        } catch (IOException e) {
+            Main.logger.warning("Failed to read Song: " + song);
+        }
+
+        final SongInfo known = songs.get(key);
+        if (known != null && known.size() == size && known.modified() == modified) {
+            return known;
+        }
+
+        final SongInfo info = read(key, size, modified);
+        if (size >= 0) {
+            songs.put(key, info);
+            changed = true;
+        }
+        return info;
+    }
+
+    /**
+     * Writes the catalog to disk if anything was added since it was last saved
+     */
+    public static synchronized void save() {
+        if (!changed) {
+            return;
+        }
+        changed = false;
+
+        final Path temporary = catalogFile.resolveSibling(catalogFile.getFileName() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                for (final Map.Entry<Path, SongInfo> entry : songs.entrySet()) {
+                    final SongInfo info = entry.getValue();
+                    out.writeUTF(entry.getKey().toString());
+                    out.writeLong(info.size());
+                    out.writeLong(info.modified());
+                    out.writeUTF(info.title());
+                    out.writeUTF(info.artist());
+                    out.writeLong(info.duration());
+                    out.writeUTF(info.format());
+                }
+            }
+            Files.move(temporary, catalogFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            changed = true;
+            Main.logger.warning("Failed to save the Song catalog");
+        }
+    }
+
+    private static void load() {
+        if (!loaded) {
+            loadFile();
+        }
+    }
+
+    private static synchronized void loadFile() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (!Files.isRegularFile(catalogFile)) {
+            return;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(catalogFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return;
+            }
+            while (true) {
+                final String path;
+                try {
+                    path = in.readUTF();
+                } catch (EOFException e) {
+                    break;
+                }
+                songs.put(Path.of(path), new SongInfo(in.readLong(), in.readLong(), in.readUTF(), in.readUTF(), in.readLong(), in.readUTF()));
+            }
+        } catch (IOException e) {
+            Main.logger.warning("Failed to read the Song catalog, it will be rebuilt");
+        }
+    }
+
+    /**
+     * Reads a Song's details. WAV files are read chunk by chunk and FLAC files block by block, skipping the audio
+     */
+    private static SongInfo read(final Path song, final long size, final long modified) {
+        final String fileTitle = Directories.getFileNameWithoutExtension(song).replace("_", " ");
+        try {
+            if (FlacDecoder.isFlac(song)) {
+                return readFlac(song, size, modified, fileTitle);
+            }
+            final SongInfo riff = readRiff(song, size, modified, fileTitle);
+            if (riff != null) {
+                return riff;
+            }
+        } catch (UnsupportedAudioFileException | IOException e) {
+            Main.logger.warning("Failed to read metadata for Song: " + song);
+        }
+
+        try {
+            final AudioFileFormat format = AudioSystem.getAudioFileFormat(song.toFile());
+            final long duration = format.getFrameLength() < 0 ? -1
+                    : (long) (format.getFrameLength() * 1_000_000.0 / format.getFormat().getFrameRate());
+            return new SongInfo(size, modified, fileTitle, UNKNOWN_ARTIST, duration, format.getFormat().toString());
+        } catch (UnsupportedAudioFileException | IOException e) {
+            return new SongInfo(size, modified, fileTitle, UNKNOWN_ARTIST, -1, "Unknown");
+        }
+    }
+
+    /**
+     * Reads the STREAMINFO and VORBIS_COMMENT blocks of a FLAC file
+     */
+    private static SongInfo readFlac(final Path song, final long size, final long modified, final String fileTitle) throws UnsupportedAudioFileException, IOException {
+        try (FlacDecoder flac = FlacDecoder.readMetadata(song)) {
+            final long duration = flac.totalSamples == 0 ? -1 : flac.totalSamples * 1_000_000 / flac.sampleRate;
+            final String format = "FLAC " + flac.sampleRate + " Hz " + flac.bitsPerSample + " bit " + flac.channels + " ch";
+            return new SongInfo(size, modified, flac.title == null ? fileTitle : flac.title,
+                    flac.artist == null ? UNKNOWN_ARTIST : flac.artist, duration, format);
+        }
+    }
+
+    /**
+     * Reads the chunks of a RIFF WAVE file for its format, data length and LIST/INFO tags
+     * @return SongInfo, or null if the file isn't RIFF WAVE
+     */
+    private static SongInfo readRiff(final Path song, final long size, final long modified, final String fileTitle) throws IOException {
+        try (FileChannel channel = FileChannel.open(song, StandardOpenOption.READ)) {
+            final WaveFile wave = WaveFile.read(channel);
+            if (wave == null) {
+                return null;
+            }
+            final long duration = wave.dataLength < 0 || wave.byteRate == 0 ? -1 : wave.dataLength * 1_000_000 / wave.byteRate;
+            return new SongInfo(size, modified, wave.title == null ? fileTitle : wave.title,
+                    wave.artist == null ? UNKNOWN_ARTIST : wave.artist, duration, wave.channels == 0 ? "Unknown" : wave.describe());
+        }
+    }
+}
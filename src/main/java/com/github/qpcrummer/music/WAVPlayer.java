@@ -2,27 +2,43 @@ package com.github.qpcrummer.music;
 
 import com.github.qpcrummer.Main;
 import com.github.qpcrummer.beat.BeatManager;
+import com.github.qpcrummer.beat.BeatTimeline;
+import com.github.qpcrummer.directories.Directories;
 import com.github.qpcrummer.gui.NewJukeboxGUI;
+import com.github.qpcrummer.metrics.Metrics;
 
 import javax.sound.sampled.*;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.function.Predicate;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicLong;
 
 public class WAVPlayer {
 
-    private static Clip wavClip;
-    private static final AtomicLong currentPosition = new AtomicLong();
+    private static final AudioEngine engine = new AudioEngine(WAVPlayer::onSongEnd, WAVPlayer::onSongChange);
     private static long songLength;
-    private static FloatControl volume;
+    private static volatile double volumeLevel = 100;
     private static boolean playing;
     private static boolean looping;
     private static int index1 = 0;
     private static final BeatManager beatManager = new BeatManager();
-    private static int[] indexes;
-    public static Path[] songPaths;
-    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    private static volatile int[] indexes;
+    public static volatile Path[] songPaths;
+    private static final ExecutorService prefetcher = Executors.newSingleThreadExecutor();
+    private static Future<?> prefetchTask;
+    private static int prefetchGeneration;
+    private static PreparedSong prepared;
+
+    /**
+     * The next song in the play order, opened and primed ahead of time
+     * @param order position in the play order
+     * @param track primed song
+     * @param beats beats of the song
+     */
+    private record PreparedSong(int order, AudioTrack track, BeatTimeline beats) {
+    }
 
     /**
      * Run this if you change "songPaths"
@@ -33,59 +49,215 @@ public class WAVPlayer {
             indexes[i] = i;
         }
 
-        beatManager.initialize();
-        initTimer();
+        beatManager.initialize(engine.getClock()::getMicroseconds);
+    }
+
+    /**
+     * Adds Songs to the end of the list and the play order while the jukebox is running
+     * @param paths Song paths
+     */
+    public static void addSongs(final Path[] paths) {
+        final boolean nextWasFirst;
+        synchronized (WAVPlayer.class) {
+            final int oldLength = songPaths.length;
+            nextWasFirst = index1 >= indexes.length - 1;
+
+            final Path[] newPaths = Arrays.copyOf(songPaths, oldLength + paths.length);
+            System.arraycopy(paths, 0, newPaths, oldLength, paths.length);
+            songPaths = newPaths;
+
+            final int[] newIndexes = Arrays.copyOf(indexes, newPaths.length);
+            for (int i = oldLength; i < newIndexes.length; i++) {
+                newIndexes[i] = i;
+            }
+            indexes = newIndexes;
+        }
+
+        // The preloaded Song wrapped around to the start, but now there is a Song after the current one
+        if (nextWasFirst && engine.isLoaded()) {
+            prefetch();
+        }
+    }
+
+    /**
+     * Removes deleted Songs from the list and the play order while the jukebox is running.
+     * A Song that is playing keeps playing, and the one after it in the play order comes next
+     * @param paths absolute and normalized Song paths
+     */
+    public static void removeSongs(final Set<Path> paths) {
+        final boolean changed;
+        synchronized (WAVPlayer.class) {
+            // Where each old index went, or -1 if it was removed
+            final int[] moved = new int[songPaths.length];
+            final Path[] newPaths = new Path[songPaths.length];
+            int length = 0;
+            for (int i = 0; i < songPaths.length; i++) {
+                if (paths.contains(songPaths[i].toAbsolutePath().normalize())) {
+                    moved[i] = -1;
+                } else {
+                    moved[i] = length;
+                    newPaths[length++] = songPaths[i];
+                }
+            }
+            changed = length < songPaths.length;
+            if (changed) {
+                final int[] newIndexes = new int[length];
+                int order = 0;
+                for (final int index : indexes) {
+                    if (moved[index] >= 0) {
+                        newIndexes[order++] = moved[index];
+                    }
+                }
+
+                final int currentSong = index1 < moved.length ? moved[index1] : -1;
+                beatManager.renumber(currentSong);
+                if (currentSong >= 0) {
+                    index1 = currentSong;
+                } else {
+                    // A removed Song hands over to the one before it, so the one after it plays next
+                    int before = -1;
+                    for (int i = 0; i < index1; i++) {
+                        before = Math.max(before, moved[i]);
+                    }
+                    index1 = before >= 0 ? before : Math.max(length - 1, 0);
+                }
+                songPaths = Arrays.copyOf(newPaths, length);
+                indexes = newIndexes;
+            }
+        }
+
+        if (changed) {
+            if (engine.isLoaded()) {
+                prefetch();
+            }
+            if (!Main.cli) {
+                updateSelectedValue();
+            }
+        }
     }
 
     /**
      * Plays the selected clip
      */
     public static void play(final int index) {
-        System.gc();
-        // Create AudioInputStream and Clip Objects
+        if (index >= indexes.length) {
+            Main.logger.warning("No Songs have been found yet");
+            return;
+        }
         index1 = indexes[index];
         // Disable GUI code in CLI mode
         if (!Main.cli) {
             updateSelectedValue();
             NewJukeboxGUI.title = "Playing " + getTitle(index1);
         }
-        try (final AudioInputStream audioInputStream = AudioSystem.getAudioInputStream(getPath(index1).toFile())) {
-            wavClip = AudioSystem.getClip();
-            wavClip.open(audioInputStream);
-        } catch (UnsupportedAudioFileException | IOException | LineUnavailableException e) {
+        final PreparedSong preparedSong = cancelPrefetch(index);
+        final AudioTrack track;
+        if (preparedSong != null) {
+            track = preparedSong.track();
+            beatManager.setBeats(preparedSong.beats(), index1);
+        } else {
+            final long start = System.nanoTime();
+            try {
+                track = AudioTrack.open(getPath(index1));
+            } catch (UnsupportedAudioFileException | IOException e) {
+                Main.logger.warning("AudioSystem failed to start!");
+                return;
+            }
+            beatManager.readBeats(getPath(index1), index1);
+            Metrics.songLoad.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+        }
+
+        // Cache song length
+        songLength = TimeUnit.MICROSECONDS.toSeconds(track.getMicrosecondLength());
+
+        // Start the Music!!!
+        try {
+            engine.setLooping(looping);
+            engine.play(track);
+        } catch (LineUnavailableException e) {
             Main.logger.warning("AudioSystem failed to start!");
+            return;
         }
-        // Set Volume
-        if (volume != null) {
-            float value = getVolume();
-            volume = (FloatControl) wavClip.getControl(FloatControl.Type.MASTER_GAIN);
-            volume.setValue(value);
-        } else {
-            volume = (FloatControl) wavClip.getControl(FloatControl.Type.MASTER_GAIN);
+        playing = true;
+
+        // Start Beat Tracking
+        beatManager.startBeatTracking();
+
+        prefetch();
+    }
+
+    /**
+     * Opens and primes the next song and reads its beats in the background, so it can start without a gap
+     */
+    private static synchronized void prefetch() {
+        cancelPrefetch(-1);
+        if (indexes.length == 0) {
+            return;
         }
 
-        if (!playing) {
-            // Add song finished listener
-            wavClip.addLineListener(event -> {
-                if (event.getType() == LineEvent.Type.STOP) {
-                    onSongEnd();
+        final int order = peekNextSong();
+        final int generation = prefetchGeneration;
+        final Path path = getPath(indexes[order]);
+        prefetchTask = prefetcher.submit(() -> {
+            AudioTrack track = null;
+            try {
+                final long start = System.nanoTime();
+                track = AudioTrack.open(path);
+                engine.prime(track);
+                final BeatTimeline beats = beatManager.loadBeats(path);
+                Metrics.songLoad.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+                synchronized (WAVPlayer.class) {
+                    if (generation == prefetchGeneration) {
+                        prepared = new PreparedSong(order, track, beats);
+                        engine.setNext(track);
+                        track = null;
+                    }
                 }
-            });
+            } catch (UnsupportedAudioFileException | IOException e) {
+                Main.logger.warning("Failed to preload Song: " + path);
+            } finally {
+                closeQuietly(track);
+            }
+        });
+    }
 
-            // Set Playing True
-            playing = true;
+    /**
+     * Cancels the background preload and removes the next song from the engine
+     * @param order position in the play order that is about to be played
+     * @return the preloaded song if it is the one at order, otherwise null
+     */
+    private static synchronized PreparedSong cancelPrefetch(final int order) {
+        prefetchGeneration++;
+        if (prefetchTask != null) {
+            prefetchTask.cancel(true);
+            prefetchTask = null;
         }
 
-        beatManager.readBeats(getPath(index1), index1);
-
-        // Cache song length
-        songLength = TimeUnit.MICROSECONDS.toSeconds(wavClip.getMicrosecondLength());
+        final PreparedSong preparedSong = prepared;
+        prepared = null;
+        if (preparedSong == null) {
+            return null;
+        }
 
-        // Start the Music!!!
-        wavClip.start();
+        // If the engine already took the song, it belongs to the engine now
+        if (engine.takeNext() != preparedSong.track()) {
+            return null;
+        }
+        if (preparedSong.order() == order) {
+            return preparedSong;
+        }
+        closeQuietly(preparedSong.track());
+        return null;
+    }
 
-        // Start Beat Tracking
-        beatManager.startBeatTracking();
+    private static void closeQuietly(final AudioTrack track) {
+        if (track != null) {
+            try {
+                track.close();
+            } catch (IOException e) {
+                Main.logger.warning("Failed to close Song: " + track.path);
+            }
+        }
     }
 
     /**
@@ -96,13 +268,13 @@ public class WAVPlayer {
             return false;
         }
 
-        if (wavClip == null) {
+        if (!engine.isLoaded()) {
             reset();
             play(getCurrentSong());
         } else {
-            wavClip.setMicrosecondPosition(currentPosition.get());
-            wavClip.start();
+            engine.resume();
             playing = true;
+            beatManager.setPaused(false);
         }
         return true;
     }
@@ -116,8 +288,8 @@ public class WAVPlayer {
         }
 
         playing = false;
-        currentPosition.set(wavClip.getMicrosecondPosition());
-        wavClip.stop();
+        engine.pause();
+        beatManager.setPaused(true);
         return true;
     }
 
@@ -125,17 +297,14 @@ public class WAVPlayer {
      * Cancels and resets the audio clip
      */
     public static void reset() {
-        if (playing) {
-            wavClip.stop();
-            wavClip.close();
-        }
+        engine.stop();
         if (!Main.cli) {
             NewJukeboxGUI.cachedFormattedSongLength = null;
         }
         playing = false;
-        currentPosition.set(0);
         songLength = 0L;
         looping = false;
+        engine.setLooping(false);
         beatManager.resetBeats();
     }
 
@@ -143,8 +312,10 @@ public class WAVPlayer {
      * Completely removes all threads and data related to the Jukebox
      */
     public static void shutDown() {
+        cancelPrefetch(-1);
         reset();
         index1 = 0;
+        engine.close();
         beatManager.stopThread();
     }
 
@@ -163,36 +334,92 @@ public class WAVPlayer {
      * Restarts a Clip from the beginning
      */
     public static void rewind() {
-        pause();
-        currentPosition.set(0);
+        seek(0);
         resume();
     }
 
     /**
-     * Mixes up the order of Songs
+     * Moves the current song to a time. The lights jump to the state they should have at that time
+     * @param microseconds time to continue playing from
      */
-    public static void shuffle() {
-        reset();
-        final int length = indexes.length;
-        ThreadLocalRandom random = ThreadLocalRandom.current();
-        for (int i = 0; i < length; i++) {
-            int randomIndexToSwap = random.nextInt(length);
-            int temp = indexes[randomIndexToSwap];
-            indexes[randomIndexToSwap] = indexes[i];
-            indexes[i] = temp;
+    public static void seek(final long microseconds) {
+        engine.seekMicroseconds(Math.max(0, microseconds));
+        beatManager.rearm();
+    }
+
+    /**
+     * Reads the beats of the current and the preloaded Song again if their beat directories changed.
+     * The lights pick up the new beats where the Song is, without stopping it
+     * @param beatDirectories changed beat directories
+     */
+    static void reloadBeats(final Set<Path> beatDirectories) {
+        reloadBeats(song -> beatDirectories.contains(Directories.getBeatPath(song).toAbsolutePath().normalize()));
+    }
+
+    /**
+     * Sets how early each light fires, and reads the beats of the current and the preloaded Song again with them
+     * @param offsets offset of each light in microseconds, index n is light n
+     */
+    static void setLightOffsets(final long[] offsets) {
+        beatManager.setLightOffsets(offsets);
+        reloadBeats(song -> true);
+    }
+
+    /**
+     * Makes the lights find their place again after the clock moved, such as after the audio offset changed
+     */
+    static void rearmBeats() {
+        beatManager.rearm();
+    }
+
+    /**
+     * Gets the beats of the current Song
+     * @return BeatTimeline that the lights are following
+     */
+    static BeatTimeline getBeats() {
+        return beatManager.getTimeline();
+    }
+
+    private static void reloadBeats(final Predicate<Path> changed) {
+        if (!engine.isLoaded() || indexes.length == 0) {
+            return;
+        }
+
+        final int current = index1;
+        final Path currentPath = getPath(current);
+        if (changed.test(currentPath)) {
+            if (beatManager.replaceBeats(beatManager.loadBeats(currentPath), current)) {
+                Main.logger.info("Reloaded beats for " + currentPath.getFileName());
+            }
+        }
+
+        final PreparedSong preparedSong;
+        synchronized (WAVPlayer.class) {
+            preparedSong = prepared;
+        }
+        if (preparedSong != null && changed.test(getPath(indexes[preparedSong.order()]))) {
+            prefetch();
         }
-        play(0);
     }
 
     /**
-     * Starts the currentPosition timer
+     * Mixes up the order of Songs
      */
-    private static void initTimer() {
-        timer.scheduleAtFixedRate(() -> {
-            if (isPlaying()) {
-                currentPosition.getAndAdd(10000);
+    public static void shuffle() {
+        cancelPrefetch(-1);
+        reset();
+        // Songs can be added by the LibraryScanner at the same time
+        synchronized (WAVPlayer.class) {
+            final int length = indexes.length;
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < length; i++) {
+                int randomIndexToSwap = random.nextInt(length);
+                int temp = indexes[randomIndexToSwap];
+                indexes[randomIndexToSwap] = indexes[i];
+                indexes[i] = temp;
             }
-        }, 0, 10, TimeUnit.MILLISECONDS);
+        }
+        play(0);
     }
 
     /**
@@ -205,17 +432,41 @@ public class WAVPlayer {
     }
 
     /**
-     * Executes when a song has completed
+     * Executes when a song has completed. Looping songs never end, the engine restarts them itself
      */
     private static void onSongEnd() {
-        if (wavClip.getFrameLength() <= wavClip.getLongFramePosition()) {
-            if (looping) {
-                wavClip.setFramePosition(0);
-                resume();
-            } else {
-                skip();
+        skip();
+    }
+
+    /**
+     * Executes when the preloaded song has taken over from the previous one without a gap,
+     * or when a looping song starts over
+     * @param track the song that can now be heard
+     */
+    private static void onSongChange(final AudioTrack track) {
+        final PreparedSong next;
+        synchronized (WAVPlayer.class) {
+            if (prepared == null || prepared.track() != track) {
+                // A looping song started over
+                beatManager.rearm();
+                return;
             }
+            next = prepared;
+            prepared = null;
+        }
+
+        index1 = indexes[next.order()];
+        if (!Main.cli) {
+            updateSelectedValue();
+            NewJukeboxGUI.title = "Playing " + getTitle(index1);
+            NewJukeboxGUI.cachedFormattedSongLength = null;
         }
+        songLength = TimeUnit.MICROSECONDS.toSeconds(track.getMicrosecondLength());
+
+        beatManager.setBeats(next.beats(), index1);
+        beatManager.startBeatTracking();
+
+        prefetch();
     }
 
     /**
@@ -233,6 +484,7 @@ public class WAVPlayer {
      */
     public static void setLooping(final boolean setLooping) {
         looping = setLooping;
+        engine.setLooping(looping);
     }
 
     /**
@@ -241,6 +493,7 @@ public class WAVPlayer {
      */
     public static boolean toggleLooping() {
         looping = !looping;
+        engine.setLooping(looping);
         return looping;
     }
 
@@ -253,11 +506,19 @@ public class WAVPlayer {
     }
 
     /**
-     * Gets the current position, but it may be a few microseconds behind
-     * @return current position as a long
+     * Gets the current position from the frames the audio line has played
+     * @return current position in microseconds
+     */
+    public static long getCurrentPosition() {
+        return engine.getClock().getMicroseconds();
+    }
+
+    /**
+     * Gets the clock that the current position is read from
+     * @return PlaybackClock of the audio line
      */
-    public static long getCurrentPositionLessAccurate() {
-        return  currentPosition.get();
+    public static PlaybackClock getClock() {
+        return engine.getClock();
     }
 
     /**
@@ -273,11 +534,19 @@ public class WAVPlayer {
      * @return Next song's index to play
      */
     public static int getNextSong() {
+        index1 = peekNextSong();
+        return index1;
+    }
+
+    /**
+     * Same as getNextSong, but without moving to it
+     * @return Next song's index to play
+     */
+    private static int peekNextSong() {
         if (index1 >= indexes.length - 1) {
             return 0;
         } else {
-            index1++;
-            return index1;
+            return index1 + 1;
         }
     }
 
@@ -291,25 +560,29 @@ public class WAVPlayer {
 
     /**
      * Calculates the volume based on slider
-     * @param sliderValue ImGUI Slider value
+     * @param sliderValue ImGUI Slider value, clamped to 0-100
      */
     public static void calcVolume(final double sliderValue) {
-        if (volume == null) {
-            Main.logger.warning("Volume cannot be set if a song is not loaded");
-            return;
-        }
-
+        volumeLevel = Double.isNaN(sliderValue) ? 0 : Math.clamp(sliderValue, 0, 100);
         double newVolume;
-        if (sliderValue == 0) {
+        if (volumeLevel == 0) {
             newVolume = -80;
         } else {
-            newVolume = 30 * Math.log10(sliderValue) - 60;
+            newVolume = 30 * Math.log10(volumeLevel) - 60;
         }
-        volume.setValue((float) newVolume);
+        engine.setGain((float) newVolume);
     }
 
     public static float getVolume() {
-        return volume.getValue();
+        return engine.getGain();
+    }
+
+    /**
+     * Gets the volume the way it was set
+     * @return slider value, 0-100
+     */
+    public static double getVolumeLevel() {
+        return volumeLevel;
     }
 
     /**
@@ -318,7 +591,7 @@ public class WAVPlayer {
      * @return Name and Author as a String
      */
     public static String getTitle(int index) {
-        return NewJukeboxGUI.titleList[index];
+        return MusicUtils.getTitle(songPaths[index]);
     }
 
     /**
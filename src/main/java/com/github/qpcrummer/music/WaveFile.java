@@ -0,0 +1,232 @@
+package com.github.qpcrummer.music;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The chunks of a RIFF WAVE file that the jukebox uses, read without touching the audio.
+ * Handles WAVE_FORMAT_EXTENSIBLE, chunks in any order, data chunks with a streaming writer's placeholder length,
+ * and writers that forget to pad odd length chunks
+ */
+final class WaveFile {
+    static final int FORMAT_PCM = 1;
+    static final int FORMAT_FLOAT = 3;
+    static final int FORMAT_EXTENSIBLE = 0xFFFE;
+    // Songs bigger than one mapping are streamed instead
+    private static final long MAX_MAPPED = Integer.MAX_VALUE;
+    // The biggest LIST chunk read for tags
+    private static final int MAX_LIST = 1 << 20;
+
+    // Format tag, or the sub format of an extensible file
+    int format;
+    int channels;
+    int sampleRate;
+    long byteRate;
+    int blockAlign;
+    int bitsPerSample;
+    // Bits actually used in each sample, which can be less than bitsPerSample in extensible files
+    int validBits;
+    long dataOffset = -1;
+    long dataLength = -1;
+    String title;
+    String artist;
+
+    private WaveFile() {
+    }
+
+    /**
+     * Walks the chunks of a file for its format, data chunk and LIST/INFO tags
+     * @param channel open file
+     * @return WaveFile, or null if the file isn't RIFF WAVE
+     */
+    static WaveFile read(final FileChannel channel) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        if (channel.read(header, 0) < 12 || header.getInt(0) != fourCC("RIFF") || header.getInt(8) != fourCC("WAVE")) {
+            return null;
+        }
+
+        final WaveFile wave = new WaveFile();
+        final long fileSize = channel.size();
+        final ByteBuffer chunkHeader = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        long position = 12;
+        while (position + 8 <= fileSize) {
+            chunkHeader.clear();
+            channel.read(chunkHeader, position);
+            final int id = chunkHeader.getInt(0);
+            long length = Integer.toUnsignedLong(chunkHeader.getInt(4));
+            final long body = position + 8;
+
+            if (id == fourCC("fmt ") && length >= 16) {
+                wave.readFormat(readChunk(channel, body, (int) Math.min(length, 40)));
+            } else if (id == fourCC("data")) {
+                // Writers that stream leave the length at 0 or -1, and truncated files end early.
+                // A real empty data chunk is followed by another chunk, such as LIST tags
+                if (length == 0xFFFFFFFFL || body + length > fileSize
+                        || length == 0 && !isChunkHeader(channel, body, fileSize)) {
+                    length = fileSize - body;
+                }
+                wave.dataOffset = body;
+                wave.dataLength = length;
+            } else if (id == fourCC("LIST") && length >= 4 && length <= MAX_LIST) {
+                wave.readList(readChunk(channel, body, (int) length));
+            }
+            position = nextChunk(channel, body, length);
+        }
+        return wave;
+    }
+
+    private void readFormat(final ByteBuffer fmt) {
+        if (fmt.limit() < 16) {
+            return;
+        }
+        this.format = Short.toUnsignedInt(fmt.getShort(0));
+        this.channels = Short.toUnsignedInt(fmt.getShort(2));
+        this.sampleRate = fmt.getInt(4);
+        this.byteRate = Integer.toUnsignedLong(fmt.getInt(8));
+        this.blockAlign = Short.toUnsignedInt(fmt.getShort(12));
+        this.bitsPerSample = Short.toUnsignedInt(fmt.getShort(14));
+        this.validBits = this.bitsPerSample;
+
+        // The real format of an extensible file is the first two bytes of its sub format GUID
+        if (this.format == FORMAT_EXTENSIBLE && fmt.limit() >= 26 && Short.toUnsignedInt(fmt.getShort(16)) >= 22) {
+            final int valid = Short.toUnsignedInt(fmt.getShort(18));
+            if (valid > 0 && valid <= this.bitsPerSample) {
+                this.validBits = valid;
+            }
+            this.format = Short.toUnsignedInt(fmt.getShort(24));
+        }
+    }
+
+    private void readList(final ByteBuffer list) {
+        if (list.limit() < 4 || list.getInt(0) != fourCC("INFO")) {
+            return;
+        }
+        int offset = 4;
+        while (offset + 8 <= list.limit()) {
+            final int tagId = list.getInt(offset);
+            final int tagLength = list.getInt(offset + 4);
+            if (tagLength < 0 || offset + 8 + tagLength > list.limit()) {
+                break;
+            }
+            final String value = readString(list, offset + 8, tagLength);
+            if (tagId == fourCC("INAM") && !value.isBlank()) {
+                this.title = value;
+            } else if (tagId == fourCC("IART") && !value.isBlank()) {
+                this.artist = value;
+            }
+            offset += 8 + tagLength + (tagLength & 1);
+        }
+    }
+
+    /**
+     * Finds the chunk after one. Chunks are padded to an even length, but some writers leave the pad byte out,
+     * so an odd chunk is followed from whichever end has a chunk ID after it
+     */
+    private static long nextChunk(final FileChannel channel, final long body, final long length) throws IOException {
+        final long padded = body + length + (length & 1);
+        if ((length & 1) == 0 || isChunkId(channel, padded) || !isChunkId(channel, body + length)) {
+            return padded;
+        }
+        return body + length;
+    }
+
+    /**
+     * Checks for a chunk ID with a length that fits in the file
+     */
+    private static boolean isChunkHeader(final FileChannel channel, final long position, final long fileSize) throws IOException {
+        final ByteBuffer header = readChunk(channel, position, 8);
+        return header.limit() == 8 && isChunkId(channel, position)
+                && position + 8 + Integer.toUnsignedLong(header.getInt(4)) <= fileSize;
+    }
+
+    private static boolean isChunkId(final FileChannel channel, final long position) throws IOException {
+        final ByteBuffer id = readChunk(channel, position, 4);
+        if (id.limit() < 4) {
+            return false;
+        }
+        for (int i = 0; i < 4; i++) {
+            if (id.get(i) < 0x20 || id.get(i) > 0x7E) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the AudioFormat of the data chunk, if it can be played as it is on disk
+     * @return AudioFormat, or null if it is compressed, has no data or has an unusual sample layout
+     */
+    AudioFormat getAudioFormat() {
+        if (this.dataOffset < 0 || this.channels == 0 || this.sampleRate <= 0 || this.bitsPerSample % 8 != 0
+                || this.blockAlign != this.channels * this.bitsPerSample / 8) {
+            return null;
+        }
+        final AudioFormat.Encoding encoding;
+        if (this.format == FORMAT_FLOAT && this.bitsPerSample == 32) {
+            encoding = AudioFormat.Encoding.PCM_FLOAT;
+        } else if (this.format == FORMAT_PCM && this.bitsPerSample == 8) {
+            encoding = AudioFormat.Encoding.PCM_UNSIGNED;
+        } else if (this.format == FORMAT_PCM && this.bitsPerSample <= 32) {
+            encoding = AudioFormat.Encoding.PCM_SIGNED;
+        } else {
+            return null;
+        }
+        return new AudioFormat(encoding, this.sampleRate, this.bitsPerSample, this.channels, this.blockAlign, this.sampleRate, false);
+    }
+
+    /**
+     * Maps the whole frames of the data chunk. The mapping stays valid after the channel is closed
+     * @param channel channel the WaveFile was read from
+     * @return mapping positioned at the first frame, or null if the data is too big for one mapping
+     */
+    MappedByteBuffer map(final FileChannel channel) throws IOException {
+        final long length = this.dataLength - this.dataLength % this.blockAlign;
+        if (length > MAX_MAPPED) {
+            return null;
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, this.dataOffset, length);
+    }
+
+    /**
+     * Describes the format, such as "PCM 44100 Hz 16 bit 2 ch"
+     * @return format as a String
+     */
+    String describe() {
+        final String name = switch (this.format) {
+            case FORMAT_PCM -> "PCM";
+            case FORMAT_FLOAT -> "Float";
+            default -> "Format " + this.format;
+        };
+        return name + " " + this.sampleRate + " Hz " + this.validBits + " bit " + this.channels + " ch";
+    }
+
+    private static ByteBuffer readChunk(final FileChannel channel, final long position, final int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) > 0) {
+            // Keep reading until the chunk is full or the file ends
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * Reads a null terminated INFO value
+     */
+    private static String readString(final ByteBuffer buffer, final int offset, final int length) {
+        int end = offset;
+        while (end < offset + length && buffer.get(end) != 0) {
+            end++;
+        }
+        final byte[] bytes = new byte[end - offset];
+        buffer.get(offset, bytes);
+        return new String(bytes, StandardCharsets.UTF_8).trim();
+    }
+
+    private static int fourCC(final String id) {
+        return id.charAt(0) | id.charAt(1) << 8 | id.charAt(2) << 16 | id.charAt(3) << 24;
+    }
+}
@@ -0,0 +1,164 @@
+package com.github.qpcrummer.network;
+
+import com.github.qpcrummer.Main;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends the beat events of this node to follower nodes over UDP, so more lights than one relay board can be driven.
+ * Events are sent LEAD early with the time they are due on this node's clock, and every packet has the whole state,
+ * so a lost packet is fixed by the next one. Followers join by asking for the time, and are dropped once they stop asking
+ */
+public final class LightBroadcaster {
+    public static final int DEFAULT_PORT = 8788;
+    /**
+     * How early events are sent, in microseconds. Packets that take longer than this are shown late
+     */
+    public static final long LEAD = 200_000;
+    // Each event is sent this many times, since followers ignore copies
+    private static final int COPIES = 2;
+    // Followers that haven't asked for the time for this long are dropped, in nanoseconds
+    private static final long FOLLOWER_TIMEOUT = TimeUnit.SECONDS.toNanos(5);
+    private static volatile boolean running;
+    private static DatagramChannel channel;
+    private static int session;
+    private static long sequence;
+    private static final Map<SocketAddress, Long> followers = new ConcurrentHashMap<>();
+    // Only used while holding the class lock
+    private static final ByteBuffer packet = ByteBuffer.allocateDirect(LightPacket.EVENT_SIZE);
+
+    private LightBroadcaster() {
+    }
+
+    /**
+     * Starts leading on a UDP port. Calling this again does nothing
+     * @param port UDP port followers connect to
+     * @return false if the port couldn't be opened
+     */
+    public static synchronized boolean start(final int port) {
+        if (running) {
+            return true;
+        }
+        try {
+            channel = DatagramChannel.open().bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            Main.logger.warning("Failed to lead on UDP port " + port);
+            return false;
+        }
+        // Never 0, which is what followers send
+        session = ThreadLocalRandom.current().nextInt(1, Integer.MAX_VALUE);
+        running = true;
+
+        Main.logger.info("Leading followers on UDP port " + port);
+        final Thread thread = new Thread(LightBroadcaster::answerTimeRequests, "Light Broadcaster");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    public static boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Gets the number of followers that asked for the time lately
+     * @return follower count
+     */
+    public static int getFollowerCount() {
+        return followers.size();
+    }
+
+    /**
+     * Sends a beat event to every follower
+     * @param generation generation of the BeatManager, which changes whenever the clock jumps
+     * @param state lit lights, bit n is light n
+     * @param delay microseconds until the event is due
+     */
+    public static void send(final int generation, final long state, final long delay) {
+        if (running) {
+            sendToAll(LightPacket.EVENT, generation, System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(delay), state);
+        }
+    }
+
+    /**
+     * Makes every follower drop its queued events and show a state now, such as after a seek or pause
+     * @param generation new generation of the BeatManager
+     * @param state lit lights, bit n is light n
+     */
+    public static void reset(final int generation, final long state) {
+        if (running) {
+            sendToAll(LightPacket.RESET, generation, System.nanoTime(), state);
+        }
+    }
+
+    private static synchronized void sendToAll(final byte type, final int generation, final long time, final long state) {
+        if (followers.isEmpty()) {
+            return;
+        }
+        LightPacket.header(packet, type, session).putLong(++sequence).putInt(generation).putLong(time).putLong(state).flip();
+
+        final long now = System.nanoTime();
+        for (final Map.Entry<SocketAddress, Long> follower : followers.entrySet()) {
+            if (now - follower.getValue() > FOLLOWER_TIMEOUT) {
+                followers.remove(follower.getKey());
+                Main.logger.info("Follower left: " + follower.getKey());
+                continue;
+            }
+            for (int copy = 0; copy < COPIES; copy++) {
+                try {
+                    channel.send(packet.rewind(), follower.getKey());
+                } catch (IOException e) {
+                    // UDP may drop packets anyway, so this is the same as a lost one
+                }
+            }
+        }
+    }
+
+    /**
+     * Answers followers' time requests with this node's clock, for NTP style offset estimation
+     */
+    private static void answerTimeRequests() {
+        final ByteBuffer request = ByteBuffer.allocate(LightPacket.TIME_SIZE);
+        final ByteBuffer answer = ByteBuffer.allocate(LightPacket.TIME_SIZE);
+        while (true) {
+            final SocketAddress follower;
+            final long received;
+            try {
+                request.clear();
+                follower = channel.receive(request);
+                received = System.nanoTime();
+            } catch (IOException e) {
+                Main.logger.warning("Stopped leading followers");
+                running = false;
+                return;
+            }
+
+            request.flip();
+            if (LightPacket.readHeader(request) != LightPacket.TIME) {
+                continue;
+            }
+            request.getInt();
+            final long followerSent = request.getLong();
+
+            if (followers.put(follower, received) == null) {
+                Main.logger.info("Follower joined: " + follower);
+            }
+            synchronized (LightBroadcaster.class) {
+                LightPacket.header(answer, LightPacket.TIME, session).putLong(followerSent).putLong(received).putLong(System.nanoTime()).flip();
+                try {
+                    channel.send(answer, follower);
+                } catch (IOException e) {
+                    // The follower asks again
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package com.github.qpcrummer.network;
+
+import com.github.qpcrummer.Main;
+import com.github.qpcrummer.light.LightUtils;
+import com.github.qpcrummer.metrics.Metrics;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Shows the lights of a leading node. The leader's clock is estimated NTP style from the fastest of the last few
+ * time requests, and every event is shown when it is due on that clock. A follower shows the leader's lights
+ * from firstLight on, so each follower can drive the next relay board along
+ */
+public final class LightFollower {
+    // Time requests kept for the offset estimate
+    private static final int SAMPLES = 8;
+    // Time between requests once the first SAMPLES have been taken, in milliseconds
+    private static final long SYNC_INTERVAL = 1000;
+    private static final long FIRST_SYNC_INTERVAL = 100;
+    private static DatagramChannel channel;
+    private static int firstLight;
+    private static Thread scheduler;
+
+    /**
+     * An event waiting to be shown
+     * @param due local System.nanoTime it is due at
+     * @param state lit lights of the leader
+     */
+    private record Pending(long due, long state) {
+    }
+
+    // Guarded by the class lock
+    private static final PriorityQueue<Pending> pending = new PriorityQueue<>((a, b) -> Long.compare(a.due(), b.due()));
+    private static final long[] offsets = new long[SAMPLES];
+    private static final long[] delays = new long[SAMPLES];
+    private static int samples;
+    // Leader clock minus local clock, in nanoseconds
+    private static long offset;
+    // Session of the events being shown, or 0 before the first event
+    private static int session;
+    // Session of the leader the time samples were taken from. Each run of the leader has its own clock origin
+    private static int sampleSession;
+    private static long lastSequence;
+    private static int generation;
+    private static long lost;
+
+    private LightFollower() {
+    }
+
+    /**
+     * Starts following a leader. Calling this again does nothing
+     * @param leader address of the leader's LightBroadcaster
+     * @param first the leader's light shown on this node's light 0
+     * @return false if no socket could be opened
+     */
+    public static synchronized boolean start(final InetSocketAddress leader, final int first) {
+        if (scheduler != null) {
+            return true;
+        }
+        try {
+            channel = DatagramChannel.open().connect(leader);
+        } catch (IOException e) {
+            Main.logger.warning("Failed to follow " + leader);
+            return false;
+        }
+        firstLight = first;
+
+        scheduler = new Thread(LightFollower::showLoop, "Light Follower");
+        scheduler.setDaemon(true);
+        scheduler.setPriority(Thread.MAX_PRIORITY);
+        scheduler.start();
+        final Thread receiver = new Thread(LightFollower::receiveLoop, "Light Follower Receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+        final Thread sync = new Thread(LightFollower::syncLoop, "Clock Sync");
+        sync.setDaemon(true);
+        sync.start();
+        Main.logger.info("Following " + leader + " from light " + first);
+        return true;
+    }
+
+    /**
+     * Describes the sync with the leader
+     * @return offset, round trip and lost packets
+     */
+    public static synchronized String describe() {
+        if (samples == 0) {
+            return "Not synced with the leader yet";
+        }
+        return "Offset " + TimeUnit.NANOSECONDS.toMicros(offset) + " us, round trip "
+                + TimeUnit.NANOSECONDS.toMicros(bestDelay()) + " us, " + lost + " packets lost";
+    }
+
+    /**
+     * Asks the leader for the time, quickly until SAMPLES have been taken and then once every SYNC_INTERVAL.
+     * The requests also tell the leader where to send events
+     */
+    private static void syncLoop() {
+        final ByteBuffer request = ByteBuffer.allocate(LightPacket.TIME_SIZE);
+        while (true) {
+            LightPacket.header(request, LightPacket.TIME, 0).putLong(System.nanoTime()).putLong(0).putLong(0).flip();
+            try {
+                channel.write(request);
+            } catch (IOException e) {
+                // Nobody is listening yet, so try again later
+            }
+            try {
+                Thread.sleep(isSyncing() ? FIRST_SYNC_INTERVAL : SYNC_INTERVAL);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private static void receiveLoop() {
+        final ByteBuffer packet = ByteBuffer.allocate(Math.max(LightPacket.EVENT_SIZE, LightPacket.TIME_SIZE));
+        while (true) {
+            final long received;
+            try {
+                packet.clear();
+                channel.receive(packet);
+                received = System.nanoTime();
+            } catch (IOException e) {
+                // The leader isn't up yet
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(FIRST_SYNC_INTERVAL));
+                continue;
+            }
+
+            packet.flip();
+            final byte type = LightPacket.readHeader(packet);
+            if (type == 0) {
+                continue;
+            }
+            final int packetSession = packet.getInt();
+            if (type == LightPacket.TIME) {
+                sample(packetSession, packet.getLong(), packet.getLong(), packet.getLong(), received);
+            } else if (type == LightPacket.EVENT || type == LightPacket.RESET) {
+                event(type, packetSession, packet.getLong(), packet.getInt(), packet.getLong(), packet.getLong());
+            }
+        }
+    }
+
+    /**
+     * Adds a time request to the offset estimate. The offset of the request with the shortest round trip is used,
+     * since the least time spent queued means the least error
+     */
+    private static synchronized void sample(final int packetSession, final long sent, final long leaderReceived,
+                                            final long leaderSent, final long received) {
+        if (session != 0 && packetSession != session) {
+            // An answer from before the leader restarted, or from a restarted leader that hasn't sent an event yet
+            return;
+        }
+        if (packetSession != sampleSession) {
+            sampleSession = packetSession;
+            samples = 0;
+        }
+        final int slot = samples++ % SAMPLES;
+        delays[slot] = (received - sent) - (leaderSent - leaderReceived);
+        offsets[slot] = ((leaderReceived - sent) + (leaderSent - received)) / 2;
+
+        final long best = bestDelay();
+        for (int i = 0; i < Math.min(samples, SAMPLES); i++) {
+            if (delays[i] == best) {
+                offset = offsets[i];
+                break;
+            }
+        }
+        if (samples == 1) {
+            Main.logger.info("Synced with the leader: " + describe());
+        }
+        LockSupport.unpark(scheduler);
+    }
+
+    private static synchronized boolean isSyncing() {
+        return samples < SAMPLES;
+    }
+
+    private static long bestDelay() {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < Math.min(samples, SAMPLES); i++) {
+            best = Math.min(best, delays[i]);
+        }
+        return best;
+    }
+
+    private static synchronized void event(final byte type, final int packetSession, final long sequence,
+                                           final int packetGeneration, final long time, final long state) {
+        if (packetSession != session) {
+            // The leader started again, so its sequence and generations did too
+            session = packetSession;
+            lastSequence = sequence - 1;
+            generation = packetGeneration;
+            pending.clear();
+            if (sampleSession != packetSession) {
+                // The offset was measured against the old leader's clock, so events wait until it is synced again
+                samples = 0;
+            }
+        }
+        if (sequence <= lastSequence) {
+            // A copy, or a packet that was overtaken
+            return;
+        }
+        lost += sequence - lastSequence - 1;
+        lastSequence = sequence;
+
+        if (type == LightPacket.RESET) {
+            generation = packetGeneration;
+            pending.clear();
+            show(state);
+            return;
+        }
+        // Events from before the last reset must not be shown after it
+        if (packetGeneration - generation < 0 || samples == 0) {
+            return;
+        }
+        if (packetGeneration != generation) {
+            // The reset for this generation was lost, so its first event stands in for it
+            generation = packetGeneration;
+            pending.clear();
+        }
+        pending.add(new Pending(time - offset, state));
+        LockSupport.unpark(scheduler);
+    }
+
+    /**
+     * Shows queued events when they are due, like the beat tracker
+     */
+    private static void showLoop() {
+        while (true) {
+            long wait = Long.MAX_VALUE;
+            synchronized (LightFollower.class) {
+                final long now = System.nanoTime();
+                Pending next;
+                Pending last = null;
+                while ((next = pending.peek()) != null && next.due() - now <= 0) {
+                    last = pending.poll();
+                    Metrics.beatLateness.record(TimeUnit.NANOSECONDS.toMicros(now - last.due()));
+                }
+                // Every event that is due is shown as one write
+                if (last != null) {
+                    show(last.state());
+                }
+                if (next != null) {
+                    wait = next.due() - now;
+                }
+            }
+
+            if (wait == Long.MAX_VALUE) {
+                LockSupport.park();
+            } else {
+                LockSupport.parkNanos(wait);
+            }
+        }
+    }
+
+    private static void show(final long state) {
+        LightUtils.setLights(state >>> firstLight);
+    }
+}
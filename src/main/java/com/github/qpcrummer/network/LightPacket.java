@@ -0,0 +1,47 @@
+package com.github.qpcrummer.network;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Layout of the UDP packets between a leader and its followers. Every packet starts with
+ * MAGIC, a type and the leader's session, which changes every time the leader starts.
+ * <ul>
+ *     <li>EVENT and RESET: sequence (long), generation (int), time (long), state (long).
+ *     An EVENT shows the state at the time on the leader's clock, in nanoseconds.
+ *     A RESET drops every queued event and shows the state straight away</li>
+ *     <li>TIME: the follower's send time, the leader's receive time and the leader's send time (longs).
+ *     The follower sends it with only the first filled in and a session of 0, and the leader sends it back</li>
+ * </ul>
+ */
+final class LightPacket {
+    static final int MAGIC = 0x434A4C54;
+    static final byte EVENT = 1;
+    static final byte RESET = 2;
+    static final byte TIME = 3;
+    static final int HEADER_SIZE = Integer.BYTES + 1 + Integer.BYTES;
+    static final int EVENT_SIZE = HEADER_SIZE + Long.BYTES + Integer.BYTES + Long.BYTES + Long.BYTES;
+    static final int TIME_SIZE = HEADER_SIZE + Long.BYTES * 3;
+
+    private LightPacket() {
+    }
+
+    /**
+     * Clears a buffer and writes the header of a packet at its start
+     */
+    static ByteBuffer header(final ByteBuffer buffer, final byte type, final int session) {
+        return buffer.clear().putInt(MAGIC).put(type).putInt(session);
+    }
+
+    /**
+     * Checks the header of a received packet in read mode, leaving the buffer at the session
+     * @return the type, or 0 if it isn't a whole packet of ours
+     */
+    static byte readHeader(final ByteBuffer buffer) {
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+            return 0;
+        }
+        final byte type = buffer.get();
+        final int size = type == TIME ? TIME_SIZE : EVENT_SIZE;
+        return buffer.remaining() + Integer.BYTES + 1 >= size ? type : 0;
+    }
+}
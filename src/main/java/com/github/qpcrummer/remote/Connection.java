@@ -0,0 +1,92 @@
+package com.github.qpcrummer.remote;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/**
+ * One client of the RemoteServer. Only the selector Thread touches it
+ */
+final class Connection {
+    final SocketChannel channel;
+    final SelectionKey key;
+    // Bytes read that haven't been handled yet
+    final ByteBuffer in;
+    private final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+    // True once the connection has been upgraded to a WebSocket
+    boolean streaming;
+    // True once the RemoteServer has stopped counting it
+    boolean released;
+    private boolean closeWhenSent;
+
+    Connection(final SocketChannel channel, final SelectionKey key, final int maxRequest) {
+        this.channel = channel;
+        this.key = key;
+        this.in = ByteBuffer.allocate(maxRequest);
+    }
+
+    /**
+     * Writes as much as the socket takes now, and keeps the rest until it is writable again
+     * @param buffer bytes to send, which aren't copied
+     */
+    void send(final ByteBuffer buffer) throws IOException {
+        if (this.out.isEmpty()) {
+            this.channel.write(buffer);
+        }
+        if (buffer.hasRemaining()) {
+            this.out.add(buffer);
+            this.key.interestOps(this.key.interestOps() | SelectionKey.OP_WRITE);
+        } else if (this.closeWhenSent) {
+            close();
+        }
+    }
+
+    /**
+     * Sends the last bytes and closes once they are written
+     */
+    void sendAndClose(final ByteBuffer buffer) throws IOException {
+        this.closeWhenSent = true;
+        send(buffer);
+    }
+
+    /**
+     * Writes what is waiting, called when the socket is writable
+     */
+    void flush() throws IOException {
+        while (!this.out.isEmpty()) {
+            final ByteBuffer buffer = this.out.peek();
+            this.channel.write(buffer);
+            if (buffer.hasRemaining()) {
+                return;
+            }
+            this.out.poll();
+        }
+        this.key.interestOps(this.key.interestOps() & ~SelectionKey.OP_WRITE);
+        if (this.closeWhenSent) {
+            close();
+        }
+    }
+
+    /**
+     * Gets how many buffers are waiting for the socket, to tell slow clients apart
+     * @return waiting buffers
+     */
+    int queued() {
+        return this.out.size();
+    }
+
+    boolean isClosing() {
+        return this.closeWhenSent;
+    }
+
+    void close() {
+        this.key.cancel();
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            // Nothing left to do with it
+        }
+    }
+}
@@ -0,0 +1,488 @@
+package com.github.qpcrummer.remote;
+
+import com.github.qpcrummer.Main;
+import com.github.qpcrummer.cli.ConsoleReader;
+import com.github.qpcrummer.light.LightUtils;
+import com.github.qpcrummer.music.MusicUtils;
+import com.github.qpcrummer.music.WAVPlayer;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A small HTTP and WebSocket server on localhost for controlling the jukebox from other programs.
+ * One Thread runs a Selector for every connection and never blocks, so no client can hold up the audio or the beats.
+ * <ul>
+ *     <li>GET /state: the current state as JSON</li>
+ *     <li>POST /play, /pause, /skip, /seek?seconds=, /volume?level= (0-100), /playlist?index=, /song?index=:
+ *     queues the command on the CLI command loop</li>
+ *     <li>GET /stream: a WebSocket that is sent the state up to RATE times a second,
+ *     and takes the same commands as text, such as "seek 30"</li>
+ * </ul>
+ * Any web page can make a browser connect to localhost, so commands only come from pages on localhost.
+ * POST requests need an Origin header such as "Origin: http://localhost", and a stream with an Origin header
+ * from anywhere else is refused
+ */
+public final class RemoteServer {
+    public static final int DEFAULT_PORT = 8787;
+    // State pushes per second
+    private static final int RATE = 20;
+    // Pushes a stream can have waiting for its socket before it is skipped until it catches up
+    private static final int MAX_QUEUED = 4;
+    private static final int MAX_REQUEST = 8 * 1024;
+    // The biggest WebSocket frame header is 14 bytes, so a frame this size still fits in the request buffer
+    private static final int MAX_PAYLOAD = MAX_REQUEST - 14;
+    private static final int MAX_CONNECTIONS = 1024;
+    private static Thread thread;
+    private static Selector selector;
+    private static final List<Connection> streams = new ArrayList<>();
+    private static int connections;
+    // Titles are read on another Thread, so a Song change never waits for the disk
+    private static volatile Path titlePath;
+    private static volatile String title = "";
+
+    private RemoteServer() {
+    }
+
+    /**
+     * Starts listening on localhost. Calling this again does nothing
+     * @param port TCP port
+     * @return false if the port couldn't be opened
+     */
+    public static synchronized boolean start(final int port) {
+        if (thread != null) {
+            return true;
+        }
+
+        final ServerSocketChannel server;
+        try {
+            selector = Selector.open();
+            server = ServerSocketChannel.open();
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            Main.logger.warning("Failed to start the remote control on port " + port);
+            return false;
+        }
+
+        ConsoleReader.startCommandLoop();
+        thread = new Thread(() -> run(server), "Remote Control");
+        thread.setDaemon(true);
+        thread.start();
+        Main.logger.info("Remote control listening on http://localhost:" + port);
+        return true;
+    }
+
+    private static void run(final ServerSocketChannel server) {
+        final long period = TimeUnit.SECONDS.toNanos(1) / RATE;
+        long nextPush = System.nanoTime() + period;
+        while (true) {
+            try {
+                final long wait = nextPush - System.nanoTime();
+                if (wait > 0) {
+                    selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+                } else {
+                    selector.selectNow();
+                }
+            } catch (IOException e) {
+                Main.logger.warning("Remote control stopped");
+                return;
+            }
+
+            final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                final SelectionKey key = keys.next();
+                keys.remove();
+                if (key.isValid() && key.isAcceptable()) {
+                    accept(server);
+                    continue;
+                }
+
+                final Connection connection = (Connection) key.attachment();
+                try {
+                    if (key.isValid() && key.isReadable()) {
+                        read(connection);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.flush();
+                    }
+                } catch (IOException e) {
+                    connection.close();
+                } catch (RuntimeException e) {
+                    // One bad request must not stop the server for everyone else
+                    Main.logger.warning("Remote control client failed: " + e);
+                    connection.close();
+                }
+                if (!key.isValid()) {
+                    closed(connection);
+                }
+            }
+
+            final long now = System.nanoTime();
+            if (now - nextPush >= 0) {
+                push();
+                // Skip the pushes that were missed instead of sending them all at once
+                nextPush = Math.max(nextPush + period, now + period / 2);
+            }
+        }
+    }
+
+    private static void accept(final ServerSocketChannel server) {
+        try {
+            SocketChannel channel;
+            while ((channel = server.accept()) != null) {
+                if (connections >= MAX_CONNECTIONS) {
+                    channel.close();
+                    continue;
+                }
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                final SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                key.attach(new Connection(channel, key, MAX_REQUEST));
+                connections++;
+            }
+        } catch (IOException e) {
+            Main.logger.warning("Failed to accept a remote control client");
+        }
+    }
+
+    /**
+     * Forgets a connection once its key is cancelled. Only the first call for a connection counts
+     */
+    private static void closed(final Connection connection) {
+        if (connection.released) {
+            return;
+        }
+        connection.released = true;
+        connections--;
+        if (connection.streaming) {
+            streams.remove(connection);
+        }
+    }
+
+    private static void read(final Connection connection) throws IOException {
+        if (connection.channel.read(connection.in) < 0) {
+            connection.close();
+            return;
+        }
+
+        connection.in.flip();
+        try {
+            if (connection.streaming) {
+                readFrames(connection);
+            } else {
+                readRequest(connection);
+            }
+        } finally {
+            connection.in.compact();
+        }
+    }
+
+    private static void readRequest(final Connection connection) throws IOException {
+        final ByteBuffer in = connection.in;
+        if (connection.isClosing()) {
+            in.position(in.limit());
+            return;
+        }
+        final int end = indexOfHeaderEnd(in);
+        if (end < 0) {
+            if (in.limit() == in.capacity()) {
+                connection.sendAndClose(response(431, "Request Header Fields Too Large", "{\"error\":\"request too large\"}"));
+            }
+            return;
+        }
+
+        final byte[] head = new byte[end - in.position()];
+        in.get(head);
+        // A body isn't used, since every argument is in the query. The connection is closed after the response
+        in.position(in.limit());
+
+        final String[] lines = new String(head, StandardCharsets.ISO_8859_1).split("\r\n");
+        final String[] request = lines[0].split(" ");
+        if (request.length != 3) {
+            connection.sendAndClose(response(400, "Bad Request", "{\"error\":\"bad request line\"}"));
+            return;
+        }
+        final Map<String, String> headers = new HashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            final int colon = lines[i].indexOf(':');
+            if (colon > 0) {
+                headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT), lines[i].substring(colon + 1).trim());
+            }
+        }
+        handle(connection, request[0], request[1], headers);
+    }
+
+    private static void handle(final Connection connection, final String method, final String target,
+                               final Map<String, String> headers) throws IOException {
+        final int question = target.indexOf('?');
+        final String path = question < 0 ? target : target.substring(0, question);
+        final String argument = question < 0 ? null : firstQueryValue(target.substring(question + 1));
+
+        if (path.equals("/stream")) {
+            final String key = headers.get("sec-websocket-key");
+            if (!method.equals("GET") || key == null || !"websocket".equalsIgnoreCase(headers.get("upgrade"))) {
+                connection.sendAndClose(response(400, "Bad Request", "{\"error\":\"expected a WebSocket upgrade\"}"));
+                return;
+            }
+            // Programs that aren't browsers usually leave the Origin out
+            final String origin = headers.get("origin");
+            if (origin != null && !isLocalOrigin(origin)) {
+                connection.sendAndClose(response(403, "Forbidden", "{\"error\":\"origin not allowed\"}"));
+                return;
+            }
+            connection.send(ByteBuffer.wrap(("HTTP/1.1 101 Switching Protocols\r\n"
+                    + "Upgrade: websocket\r\nConnection: Upgrade\r\n"
+                    + "Sec-WebSocket-Accept: " + WebSocketFrames.accept(key) + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII)));
+            connection.streaming = true;
+            streams.add(connection);
+            connection.send(WebSocketFrames.encode(WebSocketFrames.TEXT, state().getBytes(StandardCharsets.UTF_8)));
+            return;
+        }
+
+        if (path.equals("/state")) {
+            if (!method.equals("GET")) {
+                connection.sendAndClose(response(405, "Method Not Allowed", "{\"error\":\"use GET\"}"));
+                return;
+            }
+            connection.sendAndClose(response(200, "OK", state()));
+            return;
+        }
+
+        final String action = path.substring(1);
+        if (!isAction(action)) {
+            connection.sendAndClose(response(404, "Not Found", "{\"error\":\"unknown path\"}"));
+        } else if (!method.equals("POST")) {
+            connection.sendAndClose(response(405, "Method Not Allowed", "{\"error\":\"use POST\"}"));
+        } else if (!isLocalOrigin(headers.get("origin"))) {
+            // Browsers send an Origin with every POST, and a form on another site can POST here without asking first
+            connection.sendAndClose(response(403, "Forbidden", "{\"error\":\"needs an Origin header on localhost\"}"));
+        } else {
+            final String command = toCommand(action, argument);
+            if (command == null) {
+                connection.sendAndClose(response(400, "Bad Request", "{\"error\":\"bad argument\"}"));
+            } else {
+                ConsoleReader.submit(command);
+                connection.sendAndClose(response(202, "Accepted", "{\"queued\":\"" + command + "\"}"));
+            }
+        }
+    }
+
+    private static void readFrames(final Connection connection) throws IOException {
+        while (!connection.isClosing()) {
+            final WebSocketFrames.Frame frame;
+            try {
+                frame = WebSocketFrames.decode(connection.in, MAX_PAYLOAD);
+            } catch (IllegalArgumentException e) {
+                connection.close();
+                return;
+            }
+            if (frame == null) {
+                // A full buffer without a whole frame can never be read, and would wake the selector forever
+                if (connection.in.position() == 0 && connection.in.limit() == connection.in.capacity()) {
+                    connection.close();
+                }
+                return;
+            }
+
+            switch (frame.opcode()) {
+                case WebSocketFrames.CLOSE -> connection.sendAndClose(WebSocketFrames.encode(WebSocketFrames.CLOSE,
+                        frame.payload().length >= 2 ? new byte[]{frame.payload()[0], frame.payload()[1]} : new byte[0]));
+                case WebSocketFrames.PING -> connection.send(WebSocketFrames.encode(WebSocketFrames.PONG, frame.payload()));
+                case WebSocketFrames.TEXT -> {
+                    if (frame.fin()) {
+                        final String[] words = new String(frame.payload(), StandardCharsets.UTF_8).strip().split("\\s+", 2);
+                        final String command = isAction(words[0]) ? toCommand(words[0], words.length > 1 ? words[1] : null) : null;
+                        if (command != null) {
+                            ConsoleReader.submit(command);
+                        }
+                    }
+                }
+                default -> {
+                    // Pongs and fragments of long messages aren't needed
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends the state to every stream. Streams that still have MAX_QUEUED pushes waiting are skipped,
+     * so a slow client only misses updates and never makes the server buffer more for it
+     */
+    private static void push() {
+        if (streams.isEmpty()) {
+            return;
+        }
+        final ByteBuffer frame = WebSocketFrames.encode(WebSocketFrames.TEXT, state().getBytes(StandardCharsets.UTF_8));
+        for (final Connection connection : List.copyOf(streams)) {
+            if (connection.isClosing() || connection.queued() >= MAX_QUEUED) {
+                continue;
+            }
+            try {
+                connection.send(frame.duplicate());
+            } catch (IOException e) {
+                connection.close();
+            }
+            if (!connection.key.isValid()) {
+                closed(connection);
+            }
+        }
+    }
+
+    private static boolean isAction(final String action) {
+        return switch (action) {
+            case "play", "pause", "skip", "seek", "volume", "playlist", "song" -> true;
+            default -> false;
+        };
+    }
+
+    /**
+     * Checks if an Origin header is a page served from this machine
+     * @param origin Origin header, or null if there was none
+     */
+    private static boolean isLocalOrigin(final String origin) {
+        if (origin == null) {
+            return false;
+        }
+        try {
+            final URI uri = new URI(origin);
+            final String host = uri.getHost();
+            return ("http".equals(uri.getScheme()) || "https".equals(uri.getScheme())) && host != null
+                    && (host.equals("localhost") || host.equals("127.0.0.1") || host.equals("[::1]"));
+        } catch (URISyntaxException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Turns a remote action into a CLI command
+     * @return command line, or null if the argument isn't right for the action
+     */
+    private static String toCommand(final String action, final String argument) {
+        try {
+            return switch (action) {
+                case "play", "pause", "skip" -> action;
+                case "seek" -> argument != null && Double.isFinite(Double.parseDouble(argument)) ? action + " " + argument : null;
+                case "volume" -> argument != null && isLevel(Double.parseDouble(argument)) ? action + " " + argument : null;
+                case "playlist", "song" -> argument != null && Integer.parseInt(argument) >= 0 ? "load " + action + " " + argument : null;
+                default -> null;
+            };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Volume levels are the GUI slider's, 0-100
+     */
+    private static boolean isLevel(final double level) {
+        return level >= 0 && level <= 100;
+    }
+
+    /**
+     * Builds the state as JSON. Every value is a field read, so this is safe on the selector Thread
+     */
+    private static String state() {
+        final Path[] songs = WAVPlayer.songPaths;
+        final int song = WAVPlayer.getCurrentSong();
+        final Path path = songs != null && song >= 0 && song < songs.length ? songs[song] : null;
+        if (path != null && !path.equals(titlePath)) {
+            titlePath = path;
+            title = path.getFileName().toString();
+            Thread.ofVirtual().name("Remote Title").start(() -> {
+                final String read = MusicUtils.getTitle(path);
+                if (path.equals(titlePath)) {
+                    title = read;
+                }
+            });
+        }
+
+        final StringBuilder json = new StringBuilder(160)
+                .append("{\"song\":").append(path == null ? -1 : song)
+                .append(",\"title\":\"");
+        escape(json, path == null ? "" : title);
+        json.append("\",\"playing\":").append(WAVPlayer.isPlaying())
+                .append(",\"position\":").append(WAVPlayer.getCurrentPosition())
+                .append(",\"length\":").append(TimeUnit.SECONDS.toMicros(WAVPlayer.getSongLength()))
+                .append(",\"volume\":").append(WAVPlayer.getVolumeLevel())
+                .append(",\"lights\":[");
+        long lights = LightUtils.getLights();
+        while (lights != 0) {
+            json.append(Long.numberOfTrailingZeros(lights));
+            lights &= lights - 1;
+            if (lights != 0) {
+                json.append(',');
+            }
+        }
+        return json.append("]}").toString();
+    }
+
+    private static void escape(final StringBuilder json, final String text) {
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+    }
+
+    private static ByteBuffer response(final int status, final String reason, final String body) {
+        final byte[] content = body.getBytes(StandardCharsets.UTF_8);
+        final byte[] head = ("HTTP/1.1 " + status + " " + reason + "\r\n"
+                + "Content-Type: application/json\r\n"
+                + "Content-Length: " + content.length + "\r\n"
+                + "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        return ByteBuffer.allocate(head.length + content.length).put(head).put(content).flip();
+    }
+
+    private static String firstQueryValue(final String query) {
+        final int equals = query.indexOf('=');
+        if (equals < 0) {
+            return null;
+        }
+        final int and = query.indexOf('&', equals);
+        try {
+            return URLDecoder.decode(and < 0 ? query.substring(equals + 1) : query.substring(equals + 1, and), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            // A broken % escape
+            return null;
+        }
+    }
+
+    /**
+     * Finds the blank line after the headers
+     * @return index after the blank line, or -1 if it hasn't arrived yet
+     */
+    private static int indexOfHeaderEnd(final ByteBuffer in) {
+        for (int i = in.position(); i + 3 < in.limit(); i++) {
+            if (in.get(i) == '\r' && in.get(i + 1) == '\n' && in.get(i + 2) == '\r' && in.get(i + 3) == '\n') {
+                return i + 4;
+            }
+        }
+        return -1;
+    }
+}
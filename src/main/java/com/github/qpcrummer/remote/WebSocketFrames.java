@@ -0,0 +1,114 @@
+package com.github.qpcrummer.remote;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+/**
+ * The parts of RFC 6455 the RemoteServer needs: the handshake, unfragmented frames from the server,
+ * and reading masked frames from clients
+ */
+final class WebSocketFrames {
+    static final int TEXT = 0x1;
+    static final int CLOSE = 0x8;
+    static final int PING = 0x9;
+    static final int PONG = 0xA;
+    private static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    /**
+     * A frame read from a client
+     * @param opcode frame type
+     * @param payload unmasked payload
+     * @param fin false if more fragments follow
+     */
+    record Frame(int opcode, byte[] payload, boolean fin) {
+    }
+
+    private WebSocketFrames() {
+    }
+
+    /**
+     * Works out the Sec-WebSocket-Accept value for a client's key
+     */
+    static String accept(final String key) {
+        try {
+            final byte[] hash = MessageDigest.getInstance("SHA-1").digest((key + GUID).getBytes(StandardCharsets.US_ASCII));
+            return Base64.getEncoder().encodeToString(hash);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Builds an unmasked frame, as servers send them
+     * @param opcode frame type
+     * @param payload payload
+     * @return read only buffer that can be duplicated for every client
+     */
+    static ByteBuffer encode(final int opcode, final byte[] payload) {
+        final int length = payload.length;
+        final int header = length < 126 ? 2 : length <= 0xFFFF ? 4 : 10;
+        final ByteBuffer frame = ByteBuffer.allocate(header + length);
+        frame.put((byte) (0x80 | opcode));
+        if (length < 126) {
+            frame.put((byte) length);
+        } else if (length <= 0xFFFF) {
+            frame.put((byte) 126).putShort((short) length);
+        } else {
+            frame.put((byte) 127).putLong(length);
+        }
+        frame.put(payload);
+        return frame.flip().asReadOnlyBuffer();
+    }
+
+    /**
+     * Reads one frame from the start of a buffer in read mode, leaving the buffer after it
+     * @param buffer bytes from the client
+     * @param maxPayload largest payload that is accepted
+     * @return the frame, or null if it hasn't all arrived yet
+     * @throws IllegalArgumentException if the frame isn't masked or is too large
+     */
+    static Frame decode(final ByteBuffer buffer, final int maxPayload) {
+        if (buffer.remaining() < 2) {
+            return null;
+        }
+        final int start = buffer.position();
+        final int first = buffer.get(start) & 0xFF;
+        final int second = buffer.get(start + 1) & 0xFF;
+        if ((second & 0x80) == 0) {
+            throw new IllegalArgumentException("Client frames must be masked");
+        }
+
+        long length = second & 0x7F;
+        int offset = 2;
+        if (length == 126) {
+            if (buffer.remaining() < 4) {
+                return null;
+            }
+            length = buffer.getShort(start + 2) & 0xFFFF;
+            offset = 4;
+        } else if (length == 127) {
+            if (buffer.remaining() < 10) {
+                return null;
+            }
+            length = buffer.getLong(start + 2);
+            offset = 10;
+        }
+        if (length < 0 || length > maxPayload) {
+            throw new IllegalArgumentException("Frame too large");
+        }
+        if (buffer.remaining() < offset + 4 + length) {
+            return null;
+        }
+
+        final byte[] payload = new byte[(int) length];
+        final int masked = start + offset + 4;
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) (buffer.get(masked + i) ^ buffer.get(start + offset + (i & 3)));
+        }
+        buffer.position(masked + payload.length);
+        return new Frame(first & 0x0F, payload, (first & 0x80) != 0);
+    }
+}
@@ -0,0 +1,107 @@
+package com.github.qpcrummer.music;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Decodes the fixtures in resources/flac and compares them with the PCM they were encoded from.
+ * make_fixtures.py there writes both
+ */
+class FlacDecoderTest {
+    private static final int BLOCK_SIZE = 4096;
+
+    /**
+     * 16 bit stereo with independent, left/side, side/right and mid/side frames, every subframe type,
+     * wasted bits, escaped partitions and junk between two frames
+     */
+    @Test
+    void decodesStereo16() throws Exception {
+        assertArrayEquals(fixture("s16.raw"), decode(resource("s16.flac"), false));
+    }
+
+    @Test
+    void decodesMono24() throws Exception {
+        assertArrayEquals(fixture("m24.raw"), decode(resource("m24.flac"), false));
+    }
+
+    @Test
+    void decodesMono24To16() throws Exception {
+        assertArrayEquals(fixture("m24.raw.16"), decode(resource("m24.flac"), true));
+    }
+
+    @Test
+    void decodesStereo12() throws Exception {
+        assertArrayEquals(fixture("m12.raw"), decode(resource("m12.flac"), false));
+    }
+
+    @Test
+    void readsMetadata() throws Exception {
+        try (FlacDecoder decoder = FlacDecoder.readMetadata(resource("s16.flac"))) {
+            assertEquals(44100, decoder.sampleRate);
+            assertEquals(2, decoder.channels);
+            assertEquals(16, decoder.bitsPerSample);
+            assertEquals(BLOCK_SIZE * 5 + 1001, decoder.totalSamples);
+            assertEquals("Jingle Test", decoder.title);
+            assertEquals("The Encoders", decoder.artist);
+        }
+    }
+
+    /**
+     * A frame whose audio fails its CRC-16 is played as silence, and every other frame is still decoded
+     */
+    @Test
+    void silencesDamagedFrame(@TempDir final Path directory) throws Exception {
+        final byte[] flac = fixture("s16.flac");
+        // Inside the audio of one of the last frames
+        flac[flac.length - 12_000] ^= 0x10;
+        final Path damaged = directory.resolve("damaged.flac");
+        Files.write(damaged, flac);
+
+        final byte[] expected = fixture("s16.raw");
+        final byte[] decoded = decode(damaged, false);
+        assertEquals(expected.length, decoded.length);
+
+        final int blockBytes = BLOCK_SIZE * 4;
+        int silenced = 0;
+        for (int start = 0; start < expected.length; start += blockBytes) {
+            final int end = Math.min(expected.length, start + blockBytes);
+            final byte[] block = Arrays.copyOfRange(decoded, start, end);
+            if (!Arrays.equals(Arrays.copyOfRange(expected, start, end), block)) {
+                assertArrayEquals(new byte[end - start], block);
+                silenced++;
+            }
+        }
+        assertEquals(1, silenced);
+    }
+
+    @Test
+    void rejectsOtherFiles() {
+        assertThrows(UnsupportedAudioFileException.class, () -> FlacDecoder.open(resource("s16.raw"), false));
+    }
+
+    private static byte[] decode(final Path file, final boolean pcm16) throws Exception {
+        try (AudioInputStream stream = FlacDecoder.open(file, pcm16)) {
+            return stream.readAllBytes();
+        }
+    }
+
+    private static byte[] fixture(final String name) throws IOException, URISyntaxException {
+        return Files.readAllBytes(resource(name));
+    }
+
+    private static Path resource(final String name) throws URISyntaxException {
+        return Path.of(FlacDecoderTest.class.getResource("/flac/" + name).toURI());
+    }
+}
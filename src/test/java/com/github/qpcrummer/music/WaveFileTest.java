@@ -0,0 +1,158 @@
+package com.github.qpcrummer.music;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Reads WAV files built in each test, with the odd layouts real writers leave behind
+ */
+class WaveFileTest {
+    // Audio bytes that can't be mistaken for a chunk ID
+    private static final byte[] AUDIO = {0, 1, 2, 3, -4, -3, -2, -1};
+
+    @Test
+    void readsPcm(@TempDir final Path directory) throws IOException {
+        final WaveFile wave = read(directory, fmt(WaveFile.FORMAT_PCM, 16), chunk("data", AUDIO.length, AUDIO));
+        assertEquals(WaveFile.FORMAT_PCM, wave.format);
+        assertEquals(2, wave.channels);
+        assertEquals(44100, wave.sampleRate);
+        assertEquals(16, wave.bitsPerSample);
+        assertEquals(12 + 24 + 8, wave.dataOffset);
+        assertEquals(AUDIO.length, wave.dataLength);
+    }
+
+    @Test
+    void readsExtensible(@TempDir final Path directory) throws IOException {
+        final ByteBuffer fmt = format(40, WaveFile.FORMAT_EXTENSIBLE, 24);
+        // cbSize, valid bits, channel mask, then the sub format GUID
+        fmt.putShort((short) 22).putShort((short) 20).putInt(3).putShort((short) WaveFile.FORMAT_PCM);
+        final WaveFile wave = read(directory, chunk("fmt ", 40, fmt.array()), chunk("data", 0, new byte[0]));
+        assertEquals(WaveFile.FORMAT_PCM, wave.format);
+        assertEquals(24, wave.bitsPerSample);
+        assertEquals(20, wave.validBits);
+        final AudioFormat format = wave.getAudioFormat();
+        assertEquals(AudioFormat.Encoding.PCM_SIGNED, format.getEncoding());
+        assertEquals(24, format.getSampleSizeInBits());
+    }
+
+    @Test
+    void followsOddChunkWithoutPad(@TempDir final Path directory) throws IOException {
+        final byte[] junk = "odd".getBytes(StandardCharsets.US_ASCII);
+        final WaveFile wave = read(directory, fmt(WaveFile.FORMAT_PCM, 16), chunk("junk", 3, junk), chunk("data", AUDIO.length, AUDIO));
+        assertEquals(12 + 24 + 11 + 8, wave.dataOffset);
+        assertEquals(AUDIO.length, wave.dataLength);
+    }
+
+    @Test
+    void followsOddChunkWithPad(@TempDir final Path directory) throws IOException {
+        final byte[] junk = {'o', 'd', 'd', 0};
+        final WaveFile wave = read(directory, fmt(WaveFile.FORMAT_PCM, 16), chunk("junk", 3, junk), chunk("data", AUDIO.length, AUDIO));
+        assertEquals(12 + 24 + 12 + 8, wave.dataOffset);
+        assertEquals(AUDIO.length, wave.dataLength);
+    }
+
+    @Test
+    void extendsStreamedZeroLength(@TempDir final Path directory) throws IOException {
+        final WaveFile wave = read(directory, fmt(WaveFile.FORMAT_PCM, 16), chunk("data", 0, AUDIO));
+        assertEquals(AUDIO.length, wave.dataLength);
+    }
+
+    @Test
+    void extendsStreamedMinusOneLength(@TempDir final Path directory) throws IOException {
+        final WaveFile wave = read(directory, fmt(WaveFile.FORMAT_PCM, 16), chunk("data", -1, AUDIO));
+        assertEquals(AUDIO.length, wave.dataLength);
+    }
+
+    @Test
+    void cutsTruncatedData(@TempDir final Path directory) throws IOException {
+        final WaveFile wave = read(directory, fmt(WaveFile.FORMAT_PCM, 16), chunk("data", 1000, AUDIO));
+        assertEquals(AUDIO.length, wave.dataLength);
+    }
+
+    @Test
+    void readsTrailingList(@TempDir final Path directory) throws IOException {
+        final WaveFile wave = read(directory, fmt(WaveFile.FORMAT_PCM, 16), chunk("data", AUDIO.length, AUDIO), list("Title", "Artist"));
+        assertEquals(AUDIO.length, wave.dataLength);
+        assertEquals("Title", wave.title);
+        assertEquals("Artist", wave.artist);
+    }
+
+    @Test
+    void readsListAfterEmptyData(@TempDir final Path directory) throws IOException {
+        final WaveFile wave = read(directory, fmt(WaveFile.FORMAT_PCM, 16), chunk("data", 0, new byte[0]), list("Title", "Artist"));
+        assertEquals(0, wave.dataLength);
+        assertEquals("Title", wave.title);
+        assertEquals("Artist", wave.artist);
+    }
+
+    private static WaveFile read(final Path directory, final byte[]... chunks) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.writeBytes("RIFF".getBytes(StandardCharsets.US_ASCII));
+        bytes.writeBytes(new byte[4]);
+        bytes.writeBytes("WAVE".getBytes(StandardCharsets.US_ASCII));
+        for (final byte[] chunk : chunks) {
+            bytes.writeBytes(chunk);
+        }
+        final byte[] file = bytes.toByteArray();
+        ByteBuffer.wrap(file).order(ByteOrder.LITTLE_ENDIAN).putInt(4, file.length - 8);
+
+        final Path path = directory.resolve("song.wav");
+        Files.write(path, file);
+        try (FileChannel channel = FileChannel.open(path)) {
+            return WaveFile.read(channel);
+        }
+    }
+
+    /**
+     * A chunk with any length field, followed by the body as it is, so pad bytes are up to the caller
+     */
+    private static byte[] chunk(final String id, final int length, final byte[] body) {
+        return ByteBuffer.allocate(8 + body.length).order(ByteOrder.LITTLE_ENDIAN)
+                .put(id.getBytes(StandardCharsets.US_ASCII)).putInt(length).put(body).array();
+    }
+
+    private static byte[] fmt(final int format, final int bits) {
+        return chunk("fmt ", 16, format(16, format, bits).array());
+    }
+
+    /**
+     * The 16 bytes every fmt chunk starts with, for 44100 Hz stereo
+     */
+    private static ByteBuffer format(final int size, final int format, final int bits) {
+        final int blockAlign = 2 * bits / 8;
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN)
+                .putShort((short) format).putShort((short) 2).putInt(44100)
+                .putInt(44100 * blockAlign).putShort((short) blockAlign).putShort((short) bits);
+    }
+
+    private static byte[] list(final String title, final String artist) {
+        final byte[] name = info("INAM", title);
+        final byte[] art = info("IART", artist);
+        final ByteBuffer body = ByteBuffer.allocate(4 + name.length + art.length)
+                .put("INFO".getBytes(StandardCharsets.US_ASCII)).put(name).put(art);
+        return chunk("LIST", body.capacity(), body.array());
+    }
+
+    /**
+     * A null terminated INFO value, padded to an even length
+     */
+    private static byte[] info(final String id, final String value) {
+        final byte[] text = value.getBytes(StandardCharsets.UTF_8);
+        final byte[] body = new byte[(text.length + 2) & ~1];
+        System.arraycopy(text, 0, body, 0, text.length);
+        return ByteBuffer.allocate(8 + body.length).order(ByteOrder.LITTLE_ENDIAN)
+                .put(id.getBytes(StandardCharsets.US_ASCII)).putInt(text.length + 1).put(body).array();
+    }
+}
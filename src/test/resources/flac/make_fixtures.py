@@ -0,0 +1,189 @@
+# Writes the FLAC fixtures for FlacDecoderTest and the PCM they must decode to.
+# This is a small encoder of its own, not libFLAC, written to hit every subframe type, all three stereo modes,
+# wasted bits, escaped residual partitions and junk between frames. Run it from anywhere, it writes next to itself
+import math, os, random, struct
+
+def here(name):
+    return os.path.join(os.path.dirname(os.path.abspath(__file__)), name)
+
+random.seed(7)
+
+def crc8(data):
+    c = 0
+    for b in data:
+        c ^= b
+        for _ in range(8):
+            c = ((c << 1) ^ 0x07) & 0xFF if c & 0x80 else (c << 1) & 0xFF
+    return c
+
+def crc16(data):
+    c = 0
+    for b in data:
+        c ^= b << 8
+        for _ in range(8):
+            c = ((c << 1) ^ 0x8005) & 0xFFFF if c & 0x8000 else (c << 1) & 0xFFFF
+    return c
+
+class W:
+    def __init__(s): s.bits = []
+    def put(s, v, n):
+        for i in range(n - 1, -1, -1): s.bits.append((v >> i) & 1)
+    def sput(s, v, n): s.put(v & ((1 << n) - 1), n)
+    def unary(s, q): s.bits.extend([0] * q + [1])
+    def align(s):
+        while len(s.bits) % 8: s.bits.append(0)
+    def bytes(s):
+        s.align(); out = bytearray()
+        for i in range(0, len(s.bits), 8):
+            v = 0
+            for b in s.bits[i:i+8]: v = v << 1 | b
+            out.append(v)
+        return bytes(out)
+
+def rice(w, res, order, bs, ctr):
+    method = ctr % 2
+    pbits = 4 if method == 0 else 5
+    esc = (1 << pbits) - 1
+    po = 0
+    for cand in (3, 2, 1, 0):
+        if bs % (1 << cand) == 0 and (bs >> cand) >= order: po = cand; break
+    w.put(method, 2); w.put(po, 4)
+    psize = bs >> po; i = order
+    for p in range(1 << po):
+        end = (p + 1) * psize
+        part = res[i:end]
+        if (p + ctr) % 5 == 4:
+            mx = max([abs(x) for x in part] + [0])
+            nb = mx.bit_length() + 1 if mx else 0
+            w.put(esc, pbits); w.put(nb, 5)
+            for x in part: w.sput(x, nb) if nb else None
+        else:
+            mean = sum(abs(x) for x in part) / max(1, len(part))
+            k = max(0, min(esc - 1, int(math.log2(mean + 1))))
+            w.put(k, pbits)
+            for x in part:
+                u = (x << 1) if x >= 0 else ((-x) << 1) - 1
+                w.unary(u >> k); w.put(u & ((1 << k) - 1), k)
+        i = end
+
+FIXED = [[], [1], [2, -1], [3, -3, 1], [4, -6, 4, -1]]
+
+def subframe(w, x, bps, ctr):
+    bs = len(x)
+    wasted = 0
+    if all(v == x[0] for v in x):
+        w.put(0, 1); w.put(0, 6); w.put(0, 1); w.sput(x[0], bps); return
+    while all(v % (1 << (wasted + 1)) == 0 for v in x) and wasted < bps - 2: wasted += 1
+    xs = [v >> wasted for v in x]
+    b = bps - wasted
+    kind = ctr % 8
+    def hdr(t):
+        w.put(0, 1); w.put(t, 6)
+        if wasted: w.put(1, 1); w.unary(wasted - 1)
+        else: w.put(0, 1)
+    if kind == 0:
+        hdr(1)
+        for v in xs: w.sput(v, b)
+    elif kind <= 5:
+        order = kind - 1
+        hdr(8 + order)
+        for v in xs[:order]: w.sput(v, b)
+        res = [0] * bs
+        for i in range(order, bs):
+            res[i] = xs[i] - sum(c * xs[i - 1 - j] for j, c in enumerate(FIXED[order]))
+        rice(w, res, order, bs, ctr)
+    else:
+        order = 2 if kind == 6 else 8
+        shift = 10
+        prec = 14
+        base = [1.8, -0.85] if order == 2 else [1.2, -0.3, 0.05, -0.1, 0.08, -0.02, 0.01, -0.005]
+        coefs = [int(round(c * (1 << shift))) for c in base]
+        hdr(32 + order - 1)
+        for v in xs[:order]: w.sput(v, b)
+        w.put(prec - 1, 4); w.sput(shift, 5)
+        for c in coefs: w.sput(c, prec)
+        res = [0] * bs
+        for i in range(order, bs):
+            res[i] = xs[i] - (sum(c * xs[i - 1 - j] for j, c in enumerate(coefs)) >> shift)
+        rice(w, res, order, bs, ctr)
+
+def utf8num(n):
+    if n < 0x80: return bytes([n])
+    if n < 0x800: return bytes([0xC0 | n >> 6, 0x80 | n & 0x3F])
+    return bytes([0xE0 | n >> 12, 0x80 | (n >> 6) & 0x3F, 0x80 | n & 0x3F])
+
+def encode(path, rawpath, rate, bps, ch, total, blocksize, gen):
+    sig = [[gen(c, i) for i in range(total)] for c in range(ch)]
+    lim = 1 << (bps - 1)
+    sig = [[max(-lim, min(lim - 1, v)) for v in s] for s in sig]
+    out = bytearray(b"fLaC")
+    si = W()
+    si.put(blocksize, 16); si.put(blocksize, 16); si.put(0, 24); si.put(0, 24)
+    si.put(rate, 20); si.put(ch - 1, 3); si.put(bps - 1, 5); si.put(total, 36); si.put(0, 128)
+    sib = si.bytes()
+    out += bytes([0]) + len(sib).to_bytes(3, "big") + sib
+    out += bytes([1]) + (300).to_bytes(3, "big") + bytes(300)
+    vend = b"test"
+    comments = [b"TITLE=Jingle Test", b"artist=The Encoders", b"GENRE=x"]
+    vc = struct.pack("<I", len(vend)) + vend + struct.pack("<I", len(comments))
+    for c in comments: vc += struct.pack("<I", len(c)) + c
+    out += bytes([0x80 | 4]) + len(vc).to_bytes(3, "big") + vc
+    ctr = 0
+    for fn, start in enumerate(range(0, total, blocksize)):
+        bs = min(blocksize, total - start)
+        x = [s[start:start + bs] for s in sig]
+        if ch == 2:
+            mode = [1, 8, 9, 10][fn % 4]
+        else:
+            mode = ch - 1
+        h = bytearray(b"\xff\xf8")
+        szcode = 12 if bs == 4096 else 7
+        ratecode = {44100: 9, 48000: 10}.get(rate, 0)
+        sscode = {8: 1, 12: 2, 16: 4, 20: 5, 24: 6}[bps]
+        h.append(szcode << 4 | ratecode)
+        h.append(mode << 4 | (sscode if fn % 3 else 0) << 1)
+        h += utf8num(fn)
+        if szcode == 7: h += (bs - 1).to_bytes(2, "big")
+        h.append(crc8(h))
+        w = W()
+        if mode < 8:
+            for c in range(ch):
+                subframe(w, x[c], bps, ctr); ctr += 1
+        else:
+            L, R = x
+            side = [a - b for a, b in zip(L, R)]
+            if mode == 8: subs = [(L, bps), (side, bps + 1)]
+            elif mode == 9: subs = [(side, bps + 1), (R, bps)]
+            else: subs = [([(a + b) >> 1 for a, b in zip(L, R)], bps), (side, bps + 1)]
+            for s, b in subs:
+                subframe(w, s, b, ctr); ctr += 1
+        frame = bytes(h) + w.bytes()
+        frame += crc16(frame).to_bytes(2, "big")
+        out += frame
+        if fn == 1:
+            out += b"\xff\x12garbage\xff\xf9\x00" + bytes(12)  # junk between frames to exercise resync
+    open(path, "wb").write(out)
+    nb = (bps + 7) // 8
+    with open(rawpath, "wb") as f:
+        sh = nb * 8 - bps
+        for i in range(total):
+            for c in range(ch):
+                f.write(((sig[c][i] << sh) & ((1 << (nb * 8)) - 1)).to_bytes(nb, "little"))
+    if bps <= 16:
+        return
+    # What the jukebox plays when the line only takes 16 bits
+    with open(rawpath + ".16", "wb") as f:
+        for i in range(total):
+            for c in range(ch):
+                v = sig[c][i] >> (bps - 16)
+                f.write((v & 0xFFFF).to_bytes(2, "little"))
+
+def music(c, i):
+    v = 9000 * math.sin(i * 0.031 * (c + 1)) + 4000 * math.sin(i * 0.0071) + random.randint(-300, 300)
+    if 4096 * 2 <= i < 4096 * 3 and c == 1: v = 1234  # constant block on one channel
+    if 4096 * 3 <= i < 4096 * 4: v = int(v) & ~3  # wasted bits
+    return int(v)
+
+encode(here("s16.flac"), here("s16.raw"), 44100, 16, 2, 4096 * 5 + 1001, 4096, music)
+encode(here("m24.flac"), here("m24.raw"), 48000, 24, 1, 4096 * 3 + 77, 4096, lambda c, i: int(music(c, i) * 300))
+encode(here("m12.flac"), here("m12.raw"), 22050, 12, 2, 4096 * 2 + 5, 4096, lambda c, i: music(c, i) // 16)